@@ -3,8 +3,7 @@ package com.github.alanger.nexus.bootstrap;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -21,10 +20,11 @@ import javax.servlet.ServletResponse;
 import groovy.json.JsonSlurper;
 import groovy.json.JsonOutput;
 
-import org.sonatype.nexus.repository.Repository;
 import com.github.alanger.shiroext.servlets.MultiReadRequestWrapper;
-import com.github.alanger.shiroext.servlets.MutableResponseWrapper;
+import com.github.alanger.nexus.plugin.ui.ExtdirectRequestScanner;
+import com.github.alanger.nexus.plugin.ui.ExtdirectResponseRewriter;
 import com.github.alanger.nexus.plugin.ui.NonTransitiveSearchComponent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Change response from "/service/extdirect".
@@ -55,6 +55,8 @@ public class DockerExtdirectFilter extends QuotaFilter {
 
     private String prefix = "library/";
 
+    private int scanLimit = ExtdirectRequestScanner.DEFAULT_LIMIT;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         this.servletContext = filterConfig.getServletContext();
@@ -117,102 +119,94 @@ public class DockerExtdirectFilter extends QuotaFilter {
         request.setCharacterEncoding(UTF_8.name());
         response.setCharacterEncoding(UTF_8.name());
 
-        MultiReadRequestWrapper requestWrapper = new MultiReadRequestWrapper(request);
-
+        // Only top-level action and method are read, the body is parsed only if it should be changed
         boolean isJson = (request.getContentType() != null && request.getContentType().contains("json"));
-        Map<String, Object> reqMap = toMap(isJson ? jsonSlurper.parse(requestWrapper.getInputStream()) : null);
-        logger.trace("Request isJson: {}, map: {}", isJson, reqMap);
-
-        String reqAction = String.valueOf(reqMap.get("action"));
-        String reqMethod = String.valueOf(reqMap.get("method"));
+        ExtdirectRequestScanner scanner = isJson ? ExtdirectRequestScanner.scan(request, scanLimit) : null;
+        HttpServletRequest requestWrapper = scanner != null ? scanner.getRequest() : request;
+        List<ExtdirectRequestScanner.Call> calls = scanner != null ? scanner.getCalls() : Collections.emptyList();
+
+        if (scanner != null && !scanner.isComplete()) {
+            // Action or method after the scan limit
+            MultiReadRequestWrapper multiReadWrapper = new MultiReadRequestWrapper(requestWrapper);
+            calls = toCalls(jsonSlurper.parse(multiReadWrapper.getInputStream()));
+            requestWrapper = multiReadWrapper;
+        }
+        logger.trace("Request isJson: {}, batch: {}, calls: {}", isJson, scanner != null && scanner.isBatch(), calls);
 
         // Override search endpoint if enabled non-transitive privileges
-        if ("coreui_Search".equals(reqAction) && Boolean.getBoolean("nexus.sso.group.nontransitive.privileges.enabled")) {
-            reqMap.put("action", NonTransitiveSearchComponent.ACTION);
-            requestWrapper.setContent(JsonOutput.toJson(reqMap).getBytes());
-            chain.doFilter(requestWrapper, response);
-            return;
+        if (Boolean.getBoolean("nexus.sso.group.nontransitive.privileges.enabled")
+                && calls.stream().anyMatch(c -> "coreui_Search".equals(c.getAction()))) {
+            MultiReadRequestWrapper multiReadWrapper = new MultiReadRequestWrapper(requestWrapper);
+            Object body = jsonSlurper.parse(multiReadWrapper.getInputStream());
+            for (Map<String, Object> call : toMaps(body)) {
+                if ("coreui_Search".equals(call.get("action"))) {
+                    call.put("action", NonTransitiveSearchComponent.ACTION);
+                }
+            }
+            multiReadWrapper.setContent(JsonOutput.toJson(body).getBytes());
+            requestWrapper = multiReadWrapper;
         }
 
-        if (COREUI_COMPONENT.equals(reqAction) && (READ_COMPONENT.equals(reqMethod) || READ_ASSET.equals(reqMethod))
-                || READ_COMPONENT_ASSETS.equals(reqMethod)) {
-
-            MutableResponseWrapper responseWrapper = new MutableResponseWrapper(response);
-            chain.doFilter(requestWrapper, responseWrapper);
-
-            String respContent = responseWrapper.getContentAsString();
-            Map<String, Object> resMap = toMap(jsonSlurper.parseText(respContent));
-            logger.trace("Response as Map: {}", resMap);
-
-            Map<String, Object> result = toMap(resMap.get("result"));
-            boolean success = result != null && Boolean.TRUE.equals(result.get("success"));
-            String action = String.valueOf(resMap.get("action"));
-            String method = String.valueOf(resMap.get("method"));
-
-            @SuppressWarnings("null")
-            List<Object> datas = toList(result.get("data")); // List if readComponentAssets
-
-            boolean changed = false;
-
-            for (Object d : datas) {
-                Map<String, Object> data = toMap(d);
-
-                String repoName = String.valueOf(data.get("repositoryName"));
-                String repoFormat = String.valueOf(data.get("format"));
-                logger.trace("repoName: {}, repoFormat: {}, action: {}, method: {}", repoName, repoFormat, action, method);
+        if (calls.stream().anyMatch(c -> isRewritten(c.getAction(), c.getMethod()))) {
+            // Each response of batch is rewritten by its own action and method
+            ExtdirectResponseRewriter responseWrapper = new ExtdirectResponseRewriter(response,
+                    (action, method) -> isRewritten(action, method),
+                    (action, method, success, data) -> rewriteData(request, action, method, success, data));
+            try {
+                chain.doFilter(requestWrapper, responseWrapper);
+            } finally {
+                responseWrapper.finish();
+            }
+        } else {
+            chain.doFilter(requestWrapper, response);
+        }
 
-                // Hide private properties of an asset
-                if (success && COREUI_COMPONENT.equals(action) && (READ_ASSET.equals(method) || READ_COMPONENT_ASSETS.equals(method))) {
-                    // Check push permission
-                    Repository repo = repoName != null ? this.repositoryManager.get(repoName) : null;
-                    boolean pushAllowed = repo != null && userCanInRepository(repo);
-                    if (!pushAllowed) {
-                        data.put("createdBy", "***");
-                        data.put("createdByIp", "***");
-                        changed = true;
-                    }
-                }
+        if ("POST".equals(request.getMethod()) && response.getStatus() == 200
+                && calls.stream().anyMatch(c -> "coreui_RealmSettings".equals(c.getAction()) && "update".equals(c.getMethod()))) {
+            logger.trace("Realm update - request method: {}, calls: {}, response status: {}", request.getMethod(), calls,
+                    response.getStatus());
+            servletContext.setAttribute(ReloadCongiguration.NEED_RELOAD, true);
+        }
+    }
 
-                // Change Docker image name
-                if (success && COREUI_COMPONENT.equals(action) && DOCKER_FORMAT.equals(repoFormat)
-                        && (READ_COMPONENT.equals(method) || READ_COMPONENT_ASSETS.equals(method))) {
-                    String fullName = String.valueOf(data.get("name"));
-                    if (fullName.startsWith(this.prefix)) {
-                        fullName = fullName.substring(this.prefix.length(), fullName.length());
-                    }
-                    if (repoName.equals(dockerRoot) && fullName.startsWith(dockerRoot + "/")) {
-                        fullName = fullName.substring((dockerRoot + "/").length(), fullName.length());
-                    } else if (!repoName.equals(dockerRoot) && !fullName.startsWith(repoName + "/")) {
-                        fullName = repoName + "/" + fullName;
-                    }
-                    fullName = getHostName(request) + "/" + fullName;
-                    logger.trace("Image fullName: {}", fullName);
-                    data.put("name", fullName);
-                    changed = true;
-                }
-            }
+    protected boolean isRewritten(String action, String method) {
+        return COREUI_COMPONENT.equals(action)
+                && (READ_COMPONENT.equals(method) || READ_ASSET.equals(method) || READ_COMPONENT_ASSETS.equals(method));
+    }
 
-            // Write changed response
-            if (changed) {
-                respContent = JsonOutput.toJson(resMap);
-                response.setStatus(responseWrapper.getStatus());
-                response.setContentType(responseWrapper.getContentType());
-                response.setCharacterEncoding(responseWrapper.getCharacterEncoding());
-                response.setContentLength(respContent.length());
-                PrintWriter out = response.getWriter();
-                out.print(respContent);
-                out.flush();
-                return;
+    /**
+     * Change element of response data, called for each asset if readComponentAssets.
+     */
+    protected void rewriteData(HttpServletRequest request, String action, String method, boolean success, ObjectNode data) {
+        String repoName = data.path("repositoryName").asText(null);
+        String repoFormat = data.path("format").asText(null);
+        logger.trace("repoName: {}, repoFormat: {}, action: {}, method: {}", repoName, repoFormat, action, method);
+
+        // Hide private properties of an asset
+        if (success && (READ_ASSET.equals(method) || READ_COMPONENT_ASSETS.equals(method))) {
+            // Check push permission, once per repository of the request
+            boolean pushAllowed = repoName != null && userCanInRepository(request, repoName);
+            if (!pushAllowed) {
+                data.put("createdBy", "***");
+                data.put("createdByIp", "***");
             }
         }
 
-        chain.doFilter(requestWrapper, response);
-
-        if ("POST".equals(request.getMethod()) && response.getStatus() == 200 && "coreui_RealmSettings".equals(reqMap.get("action"))
-                && "update".equals(reqMap.get("method"))) {
-            logger.trace("Realm update - request method: {}, json method: {}, response status: {}", request.getMethod(),
-                    reqMap.get("method"), response.getStatus());
-            servletContext.setAttribute(ReloadCongiguration.NEED_RELOAD, true);
+        // Change Docker image name
+        if (success && DOCKER_FORMAT.equals(repoFormat) && repoName != null
+                && (READ_COMPONENT.equals(method) || READ_COMPONENT_ASSETS.equals(method))) {
+            String fullName = data.path("name").asText("null");
+            if (fullName.startsWith(this.prefix)) {
+                fullName = fullName.substring(this.prefix.length(), fullName.length());
+            }
+            if (repoName.equals(dockerRoot) && fullName.startsWith(dockerRoot + "/")) {
+                fullName = fullName.substring((dockerRoot + "/").length(), fullName.length());
+            } else if (!repoName.equals(dockerRoot) && !fullName.startsWith(repoName + "/")) {
+                fullName = repoName + "/" + fullName;
+            }
+            fullName = getHostName(request) + "/" + fullName;
+            logger.trace("Image fullName: {}", fullName);
+            data.put("name", fullName);
         }
     }
 
@@ -223,11 +217,24 @@ public class DockerExtdirectFilter extends QuotaFilter {
         return Collections.emptyMap();
     }
 
-    @SuppressWarnings("unchecked")
-    private List<Object> toList(Object obj) {
-        if (obj instanceof List)
-            return (List<Object>) obj;
-        return Arrays.asList(obj);
+    // Calls of single or batch request
+    private List<Map<String, Object>> toMaps(Object obj) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Object o : (obj instanceof List ? (List<?>) obj : Collections.singletonList(obj))) {
+            if (o instanceof Map) {
+                result.add(toMap(o));
+            }
+        }
+        return result;
+    }
+
+    private List<ExtdirectRequestScanner.Call> toCalls(Object obj) {
+        List<ExtdirectRequestScanner.Call> result = new ArrayList<>();
+        for (Map<String, Object> call : toMaps(obj)) {
+            result.add(new ExtdirectRequestScanner.Call(call.get("action") != null ? String.valueOf(call.get("action")) : null,
+                    call.get("method") != null ? String.valueOf(call.get("method")) : null));
+        }
+        return result;
     }
 
     private String getHostName(HttpServletRequest request) {
@@ -247,6 +254,14 @@ public class DockerExtdirectFilter extends QuotaFilter {
         this.dockerRoot = dockerRoot;
     }
 
+    public int getScanLimit() {
+        return scanLimit;
+    }
+
+    public void setScanLimit(int scanLimit) {
+        this.scanLimit = scanLimit;
+    }
+
     public String getPrefix() {
         return prefix;
     }
@@ -3,42 +3,73 @@ package com.github.alanger.nexus.bootstrap;
 import static com.github.alanger.shiroext.realm.RealmUtils.asList;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static javax.servlet.RequestDispatcher.ERROR_MESSAGE;
-import static java.util.Collections.singletonList;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
-import org.apache.shiro.authz.Permission;
 import org.apache.shiro.subject.Subject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sonatype.nexus.blobstore.api.BlobStore;
 import org.sonatype.nexus.blobstore.api.BlobStoreManager;
+import org.sonatype.nexus.blobstore.api.BlobStoreMetrics;
 import org.sonatype.nexus.blobstore.quota.BlobStoreQuotaResult;
 import org.sonatype.nexus.blobstore.quota.BlobStoreQuotaService;
 import org.sonatype.nexus.repository.Repository;
 import org.sonatype.nexus.repository.manager.RepositoryManager;
-import org.sonatype.nexus.repository.security.RepositoryContentSelectorPermission;
 import org.sonatype.nexus.repository.security.RepositoryViewPermission;
 import org.sonatype.nexus.security.BreadActions;
 import org.sonatype.nexus.security.SecurityHelper;
 import org.sonatype.nexus.selector.SelectorManager;
 import com.github.alanger.nexus.plugin.DI;
+import com.github.alanger.nexus.plugin.repository.ContentSelectorIndex;
+import com.github.alanger.nexus.plugin.repository.RepositoryRoute;
+import com.github.alanger.nexus.plugin.repository.RepositoryRoutingTable;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Quota filter.
  * 
+ * <p>
+ * If {@code quotaRefreshInterval} (seconds) is positive, quota results are cached per blob store and refreshed
+ * in background, the request only reads the cached verdict. If {@code quotaSyncThreshold} (percent) is positive,
+ * quota is checked synchronously for stores within this percent of their limit.
+ * 
+ * <pre>
+ * quota.quotaRefreshInterval = 30
+ * quota.quotaSyncThreshold = 5
+ * </pre>
+ * 
+ * <p>
+ * If {@code reserveUploadSize} is enabled, size of upload is reserved against remaining space of blob store quota
+ * before the upload is accepted. Declared {@code Content-Length} is reserved at once, chunked upload is reserved
+ * while it is read and aborted as soon as it exceeds the remaining space.
+ * 
+ * <pre>
+ * quota.reserveUploadSize = true
+ * </pre>
+ * 
  * @see https://help.sonatype.com/en/configuring-blob-stores.html#adding-a-soft-quota
  * @see https://help.sonatype.com/en/storage-guide.html
  * @see org.sonatype.nexus.repository.internal.blobstore.BlobStoreQuotaHealthCheck
@@ -47,6 +78,8 @@ public class QuotaFilter implements Filter {
 
     public static final String REPO_NAME_ATTR = QuotaFilter.class.getCanonicalName() + ".REPO_NAME";
 
+    public static final String PERMISSION_MEMO_ATTR = QuotaFilter.class.getCanonicalName() + ".PERMISSION_MEMO";
+
     // All protected for fix groovy.lang.MissingPropertyException: No such property: XXXXX
 
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -67,6 +100,24 @@ public class QuotaFilter implements Filter {
 
     protected BlobStoreQuotaService blobStoreQuotaService;
 
+    protected RepositoryRoutingTable repositoryRoutingTable;
+
+    protected ContentSelectorIndex contentSelectorIndex;
+
+    protected long quotaRefreshInterval = 0; // Seconds, 0 - check on each request
+
+    protected int quotaSyncThreshold = 0; // Percent of limit, 0 - never check synchronously
+
+    // Blob store name -> last verdict
+    protected final Map<String, QuotaVerdict> verdicts = new ConcurrentHashMap<>();
+
+    protected ScheduledExecutorService quotaRefresher;
+
+    protected boolean reserveUploadSize = false;
+
+    // Blob store name -> remaining space of quota
+    protected final Map<String, Headroom> headrooms = new ConcurrentHashMap<>();
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
         this.repositoryManager = DI.getInstance().repositoryManager;
@@ -74,6 +125,15 @@ public class QuotaFilter implements Filter {
         this.selectorManager = DI.getInstance().selectorManager;
         this.blobStoreManager = DI.getInstance().blobStoreManager;
         this.blobStoreQuotaService = DI.getInstance().blobStoreQuotaService;
+        this.repositoryRoutingTable = DI.getInstance().repositoryRoutingTable;
+        this.contentSelectorIndex = DI.getInstance().contentSelectorIndex;
+
+        if (quotaRefreshInterval > 0) {
+            this.quotaRefresher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("sso-quota-refresher").setDaemon(true).build());
+            this.quotaRefresher.scheduleWithFixedDelay(this::refreshVerdicts, quotaRefreshInterval, quotaRefreshInterval,
+                    TimeUnit.SECONDS);
+        }
     }
 
     @Override
@@ -81,34 +141,31 @@ public class QuotaFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) req;
         HttpServletResponse response = (HttpServletResponse) resp;
 
-        boolean isPush = methods.contains(request.getMethod());
-
-        if (request.getAttribute(getClass().getCanonicalName()) != null || !isPush) {
+        if (!enterPush(request, response)) {
             chain.doFilter(request, response);
             return;
         }
-        request.setAttribute(getClass().getCanonicalName(), true);
-        request.setCharacterEncoding(UTF_8.name());
-        response.setCharacterEncoding(UTF_8.name());
 
         String repoName = getRepoName(request);
-        Repository repo = repoName != null ? this.repositoryManager.get(repoName) : null;
+        RepositoryRoute route = this.repositoryRoutingTable.get(repoName);
+        Repository repo = route != null ? route.getRepository() : null;
         boolean pushAllowed = repo != null && userCanInRepository(repo);
 
-        if (repo != null && pushAllowed && isPush) {
+        if (repo != null && pushAllowed) {
 
-            String storeName = repo.getConfiguration().attributes("storage").get("blobStoreName", String.class);
-            BlobStore blobStore = storeName != null ? this.blobStoreManager.get(storeName) : null;
-            BlobStoreQuotaResult result = blobStore != null ? this.blobStoreQuotaService.checkQuota(blobStore) : null;
+            String storeName = route.getBlobStoreName();
+            BlobStore blobStore = route.getBlobStore();
+            BlobStoreQuotaResult result = blobStore != null ? checkQuota(route) : null;
             logger.trace("repoName: {}, storeName: {}, result: {},", repoName, storeName, result);
 
             if (result != null && result.isViolation()) {
-                String msg = result.getMessage();
-                logger.trace(msg);
-                response.setStatus(responseStatus(request));
-                response.setHeader(ERROR_MESSAGE, msg);
-                request.setAttribute(ERROR_MESSAGE, msg);
-                writeJsonMessage(response, msg);
+                reject(request, response, result.getMessage());
+                return;
+            }
+
+            Headroom headroom = reserveUploadSize && storeName != null ? headrooms.get(storeName) : null;
+            if (headroom != null) {
+                doFilterReserved(request, response, chain, storeName, headroom);
                 return;
             }
         }
@@ -116,9 +173,323 @@ public class QuotaFilter implements Filter {
         chain.doFilter(request, response);
     }
 
+    /**
+     * Mark request as processed by this filter and set encoding, if it is a push not yet processed.
+     * 
+     * @return {@code false} if the request should be passed to the chain as is
+     */
+    protected boolean enterPush(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getAttribute(getClass().getCanonicalName()) != null || !methods.contains(request.getMethod())) {
+            return false;
+        }
+        request.setAttribute(getClass().getCanonicalName(), true);
+        request.setCharacterEncoding(UTF_8.name());
+        response.setCharacterEncoding(UTF_8.name());
+        return true;
+    }
+
+    protected void reject(HttpServletRequest request, HttpServletResponse response, String msg) throws IOException {
+        reject(request, response, responseStatus(request), msg);
+    }
+
+    protected void reject(HttpServletRequest request, HttpServletResponse response, int status, String msg) throws IOException {
+        logger.trace(msg);
+        response.setStatus(status);
+        response.setHeader(ERROR_MESSAGE, msg);
+        request.setAttribute(ERROR_MESSAGE, msg);
+        writeJsonMessage(response, msg);
+    }
+
+    // Upload size reservation
+
+    protected void doFilterReserved(HttpServletRequest request, HttpServletResponse response, FilterChain chain, String storeName,
+            Headroom headroom) throws IOException, ServletException {
+        long size = request.getContentLengthLong();
+
+        if (size >= 0) {
+            if (!headroom.tryReserve(size)) {
+                reject(request, response, String.format("Upload of %d bytes exceeds remaining quota %d bytes of blob store %s", size,
+                        headroom.remaining(), storeName));
+                return;
+            }
+            boolean success = false;
+            try {
+                chain.doFilter(request, response);
+                success = response.getStatus() < 300;
+            } finally {
+                headroom.release(size, success);
+            }
+            return;
+        }
+
+        // Chunked upload
+        CountingRequestWrapper wrapper = new CountingRequestWrapper(request, headroom);
+        boolean success = false;
+        try {
+            chain.doFilter(wrapper, response);
+            success = !wrapper.isExceeded() && response.getStatus() < 300;
+        } catch (IOException | ServletException e) {
+            if (!wrapper.isExceeded()) {
+                throw e;
+            }
+        } finally {
+            headroom.release(wrapper.getCount(), success);
+        }
+        if (wrapper.isExceeded() && !response.isCommitted()) {
+            response.reset();
+            reject(request, response, String.format("Upload exceeds remaining quota %d bytes of blob store %s", headroom.remaining(),
+                    storeName));
+        }
+    }
+
+    /**
+     * @return remaining space of quota or {@code -1} if quota is not configured
+     */
+    protected long measureHeadroom(QuotaUsage usage) {
+        return usage != null ? Math.max(0, usage.headroom) : -1;
+    }
+
+    /**
+     * Remaining space of blob store quota, decreased by completed uploads until the next measurement.
+     */
+    public static class Headroom {
+
+        protected final AtomicLong available = new AtomicLong(Long.MAX_VALUE);
+
+        protected final AtomicLong reserved = new AtomicLong();
+
+        public void measure(long value) {
+            available.set(value);
+        }
+
+        public boolean tryReserve(long size) {
+            if (reserved.addAndGet(size) > available.get()) {
+                reserved.addAndGet(-size);
+                return false;
+            }
+            return true;
+        }
+
+        public void release(long size, boolean consumed) {
+            reserved.addAndGet(-size);
+            if (consumed) {
+                available.addAndGet(-size);
+            }
+        }
+
+        public long remaining() {
+            return Math.max(0, available.get() - reserved.get());
+        }
+    }
+
+    /**
+     * Reserves bytes of request body while they are read.
+     */
+    public static class CountingRequestWrapper extends HttpServletRequestWrapper {
+
+        protected final Headroom headroom;
+
+        protected long count = 0;
+
+        protected boolean exceeded = false;
+
+        protected ServletInputStream stream;
+
+        public CountingRequestWrapper(HttpServletRequest request, Headroom headroom) {
+            super(request);
+            this.headroom = headroom;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (stream == null) {
+                stream = new CountingInputStream(super.getInputStream(), this);
+            }
+            return stream;
+        }
+
+        protected void count(long n) throws IOException {
+            if (n <= 0) {
+                return;
+            }
+            if (!headroom.tryReserve(n)) {
+                exceeded = true;
+                throw new IOException("Upload exceeds remaining quota of blob store");
+            }
+            count += n;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public boolean isExceeded() {
+            return exceeded;
+        }
+    }
+
+    public static class CountingInputStream extends ServletInputStream {
+
+        protected final ServletInputStream delegate;
+
+        protected final CountingRequestWrapper wrapper;
+
+        public CountingInputStream(ServletInputStream delegate, CountingRequestWrapper wrapper) {
+            this.delegate = delegate;
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = delegate.read();
+            if (b >= 0) {
+                wrapper.count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = delegate.read(b, off, len);
+            wrapper.count(n);
+            return n;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            delegate.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
     @Override
     public void destroy() {
-        // nothing
+        if (quotaRefresher != null) {
+            quotaRefresher.shutdownNow();
+            quotaRefresher = null;
+        }
+        verdicts.clear();
+        headrooms.clear();
+    }
+
+    // Quota verdicts
+
+    /**
+     * Quota type and limit are read from the route, see {@link RepositoryRoutingTable}.
+     */
+    protected BlobStoreQuotaResult checkQuota(RepositoryRoute route) {
+        if (quotaRefresher == null) {
+            return reserveUploadSize ? computeVerdict(route).result : this.blobStoreQuotaService.checkQuota(route.getBlobStore());
+        }
+        String storeName = route.getBlobStoreName();
+        QuotaVerdict verdict = verdicts.get(storeName);
+        if (verdict == null || verdict.nearLimit) {
+            verdict = computeVerdict(route);
+            verdicts.put(storeName, verdict);
+        }
+        return verdict.result;
+    }
+
+    protected void refreshVerdicts() {
+        for (Map.Entry<String, QuotaVerdict> entry : verdicts.entrySet()) {
+            String storeName = entry.getKey();
+            try {
+                // Current route of the repository which computed the verdict
+                RepositoryRoute route = this.repositoryRoutingTable.get(entry.getValue().repositoryName);
+                if (route == null || route.getBlobStore() == null || !storeName.equals(route.getBlobStoreName())) {
+                    verdicts.remove(storeName);
+                } else {
+                    verdicts.put(storeName, computeVerdict(route));
+                }
+            } catch (Exception e) {
+                logger.warn("Error refresh quota of blob store: {}", storeName, e);
+            }
+        }
+    }
+
+    protected QuotaVerdict computeVerdict(RepositoryRoute route) {
+        String storeName = route.getBlobStoreName();
+        BlobStoreQuotaResult result = this.blobStoreQuotaService.checkQuota(route.getBlobStore());
+        QuotaUsage usage = quotaSyncThreshold > 0 || reserveUploadSize ? quotaUsage(route) : null;
+        boolean nearLimit = quotaSyncThreshold > 0 && isNearLimit(usage);
+        if (reserveUploadSize) {
+            long headroom = measureHeadroom(usage);
+            if (headroom >= 0) {
+                headrooms.computeIfAbsent(storeName, n -> new Headroom()).measure(headroom);
+            } else {
+                headrooms.remove(storeName);
+            }
+        }
+        logger.trace("Quota verdict of blob store: {}, result: {}, nearLimit: {}", storeName, result, nearLimit);
+        return new QuotaVerdict(result, nearLimit, route.getRepositoryName());
+    }
+
+    protected boolean isNearLimit(QuotaUsage usage) {
+        return usage != null && usage.headroom <= usage.limit / 100 * quotaSyncThreshold;
+    }
+
+    /**
+     * @see org.sonatype.nexus.blobstore.quota.internal.SpaceUsedQuota
+     * @see org.sonatype.nexus.blobstore.quota.internal.SpaceRemainingQuota
+     * @return limit and remaining space of quota or {@code null} if quota is not configured
+     */
+    protected QuotaUsage quotaUsage(RepositoryRoute route) {
+        if (!route.hasQuota()) {
+            return null;
+        }
+        String type = route.getQuotaType();
+        long limitBytes = route.getQuotaLimitBytes();
+        BlobStoreMetrics metrics = route.getBlobStore().getMetrics();
+        if ("spaceUsedQuota".equals(type)) {
+            return new QuotaUsage(limitBytes, limitBytes - metrics.getTotalSize());
+        }
+        if ("spaceRemainingQuota".equals(type)) {
+            return new QuotaUsage(limitBytes, metrics.getAvailableSpace() - limitBytes);
+        }
+        return null;
+    }
+
+    public static class QuotaUsage {
+
+        protected final long limit;
+
+        // Space left before the quota is violated, negative if violated
+        protected final long headroom;
+
+        public QuotaUsage(long limit, long headroom) {
+            this.limit = limit;
+            this.headroom = headroom;
+        }
+    }
+
+    public static class QuotaVerdict {
+
+        protected final BlobStoreQuotaResult result;
+
+        protected final boolean nearLimit;
+
+        // Repository whose route is used to refresh the verdict
+        protected final String repositoryName;
+
+        public QuotaVerdict(BlobStoreQuotaResult result, boolean nearLimit, String repositoryName) {
+            this.result = result;
+            this.nearLimit = nearLimit;
+            this.repositoryName = repositoryName;
+        }
     }
 
     protected void writeJsonMessage(HttpServletResponse response, String msg) throws IOException {
@@ -150,6 +521,27 @@ public class QuotaFilter implements Filter {
 
     // org.sonatype.nexus.repository.security.RepositoryPermissionChecker
 
+    /**
+     * Same as {@link #userCanInRepository(Repository)}, but the result is memoized in the request
+     * by repository name and permission.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean userCanInRepository(final HttpServletRequest request, final String repoName) {
+        Map<String, Boolean> memo = (Map<String, Boolean>) request.getAttribute(PERMISSION_MEMO_ATTR);
+        if (memo == null) {
+            memo = new HashMap<>();
+            request.setAttribute(PERMISSION_MEMO_ATTR, memo);
+        }
+        String key = repoName + ":" + permission;
+        Boolean allowed = memo.get(key);
+        if (allowed == null) {
+            Repository repo = this.repositoryRoutingTable.getRepository(repoName);
+            allowed = repo != null && userCanInRepository(repo);
+            memo.put(key, allowed);
+        }
+        return allowed;
+    }
+
     public boolean userCanInRepository(final Repository repository) {
         return userHasRepositoryViewPermissionTo(permission, repository) || userHasAnyContentSelectorAccessTo(repository, permission);
     }
@@ -160,11 +552,7 @@ public class QuotaFilter implements Filter {
 
     private boolean userHasAnyContentSelectorAccessTo(final Repository repository, final String... actions) {
         Subject subject = this.securityHelper.subject();
-        return this.selectorManager.browse().stream()
-                .anyMatch(selector -> this.securityHelper.anyPermitted(subject,
-                        Arrays.stream(actions)
-                                .map(action -> new RepositoryContentSelectorPermission(selector, repository, singletonList(action)))
-                                .toArray(Permission[]::new)));
+        return Arrays.stream(actions).anyMatch(action -> this.contentSelectorIndex.anyPermitted(subject, repository, action));
     }
 
     // Getters and Setters
@@ -197,4 +585,28 @@ public class QuotaFilter implements Filter {
         this.responseStatus = responseStatus;
     }
 
+    public long getQuotaRefreshInterval() {
+        return quotaRefreshInterval;
+    }
+
+    public void setQuotaRefreshInterval(long quotaRefreshInterval) {
+        this.quotaRefreshInterval = quotaRefreshInterval;
+    }
+
+    public boolean isReserveUploadSize() {
+        return reserveUploadSize;
+    }
+
+    public void setReserveUploadSize(boolean reserveUploadSize) {
+        this.reserveUploadSize = reserveUploadSize;
+    }
+
+    public int getQuotaSyncThreshold() {
+        return quotaSyncThreshold;
+    }
+
+    public void setQuotaSyncThreshold(int quotaSyncThreshold) {
+        this.quotaSyncThreshold = quotaSyncThreshold;
+    }
+
 }
@@ -0,0 +1,201 @@
+package com.github.alanger.nexus.bootstrap;
+
+import static com.github.alanger.nexus.plugin.repository.RateBucket.interval;
+import static com.github.alanger.nexus.plugin.repository.RateBucket.tolerance;
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.Subject;
+import org.sonatype.nexus.security.anonymous.AnonymousPrincipalCollection;
+import com.github.alanger.nexus.plugin.repository.RateBucket;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Push rate limit by user and by repository.
+ * 
+ * <p>
+ * Each user and each repository has a token bucket ({@link RateBucket}) with rate in requests per second and burst size,
+ * rate '0' disables the limit. Anonymous requests are limited by client address. Rejected request gets 429 and
+ * {@code Retry-After} header. Buckets not used until they are full again (at least a minute) are forgotten,
+ * no more than {@code maxBuckets} buckets of users and of repositories are kept.
+ * 
+ * <pre>
+ * rateLimit = com.github.alanger.nexus.bootstrap.RateLimitFilter
+ * rateLimit.methods = PUT,POST
+ * rateLimit.userRate = 50
+ * rateLimit.userBurst = 100
+ * rateLimit.repoRate = 200
+ * rateLimit.repoBurst = 400
+ * rateLimit.maxBuckets = 10000
+ * </pre>
+ */
+public class RateLimitFilter extends QuotaFilter {
+
+    protected double userRate = 0; // Requests per second, 0 - unlimited
+
+    protected int userBurst = 1;
+
+    protected double repoRate = 0; // Requests per second, 0 - unlimited
+
+    protected int repoBurst = 1;
+
+    protected long maxBuckets = 10000;
+
+    // Principal name or anonymous client address -> bucket
+    protected Cache<String, RateBucket> userBuckets;
+
+    // Repository name -> bucket
+    protected Cache<String, RateBucket> repoBuckets;
+
+    public RateLimitFilter() {
+        setResponseStatus(429); // Too Many Requests
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        super.init(filterConfig);
+        this.userBuckets = buildBuckets(userRate, userBurst);
+        this.repoBuckets = buildBuckets(repoRate, repoBurst);
+    }
+
+    protected Cache<String, RateBucket> buildBuckets(double rate, int burst) {
+        long idle = Math.max(TimeUnit.MINUTES.toNanos(1), rate > 0 ? RateBucket.refillNanos(rate, burst) : 0);
+        return CacheBuilder.newBuilder().maximumSize(maxBuckets).expireAfterAccess(idle, TimeUnit.NANOSECONDS).build();
+    }
+
+    protected RateBucket bucket(Cache<String, RateBucket> buckets, String key) {
+        RateBucket bucket = buckets.getIfPresent(key);
+        return bucket != null ? bucket : buckets.asMap().computeIfAbsent(key, k -> new RateBucket());
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+
+        if (!enterPush(request, response)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        String userName = getUserKey(request);
+        RateBucket userBucket = userRate > 0 ? bucket(userBuckets, userName) : null;
+        long userWait = userBucket != null ? userBucket.tryAcquire(now, interval(userRate), tolerance(userRate, userBurst)) : 0;
+        if (userWait > 0) {
+            reject(request, response, userWait, format("Push rate limit of user %s exceeded", userName));
+            return;
+        }
+
+        String repoName = getRepoName(request);
+        RateBucket repoBucket = repoRate > 0 && this.repositoryRoutingTable.get(repoName) != null
+                ? bucket(repoBuckets, repoName)
+                : null;
+        long repoWait = repoBucket != null ? repoBucket.tryAcquire(now, interval(repoRate), tolerance(repoRate, repoBurst)) : 0;
+        if (repoWait > 0) {
+            if (userBucket != null) {
+                userBucket.refund(interval(userRate));
+            }
+            reject(request, response, repoWait, format("Push rate limit of repository %s exceeded", repoName));
+            return;
+        }
+
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * Anonymous clients do not share one bucket, they are distinguished by address.
+     */
+    protected String getUserKey(HttpServletRequest request) {
+        Subject subject = SecurityUtils.getSubject();
+        Object principal = subject.getPrincipal();
+        if (principal == null || subject.getPrincipals() instanceof AnonymousPrincipalCollection) {
+            return "anonymous@" + request.getRemoteAddr();
+        }
+        return String.valueOf(principal);
+    }
+
+    protected void reject(HttpServletRequest request, HttpServletResponse response, long waitNanos, String msg) throws IOException {
+        long retryAfter = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setHeader("Retry-After", String.valueOf(retryAfter));
+        // Also for UI upload, so that clients can back off
+        reject(request, response, getResponseStatus(), msg);
+    }
+
+    @Override
+    public void destroy() {
+        if (userBuckets != null) {
+            userBuckets.invalidateAll();
+        }
+        if (repoBuckets != null) {
+            repoBuckets.invalidateAll();
+        }
+        super.destroy();
+    }
+
+    // Getters and Setters
+
+    public Map<String, RateBucket> getUserBuckets() {
+        return userBuckets != null ? Collections.unmodifiableMap(userBuckets.asMap()) : Collections.emptyMap();
+    }
+
+    public Map<String, RateBucket> getRepoBuckets() {
+        return repoBuckets != null ? Collections.unmodifiableMap(repoBuckets.asMap()) : Collections.emptyMap();
+    }
+
+    public long getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    public void setMaxBuckets(long maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
+
+    public double getUserRate() {
+        return userRate;
+    }
+
+    public void setUserRate(double userRate) {
+        this.userRate = userRate;
+    }
+
+    public int getUserBurst() {
+        return userBurst;
+    }
+
+    public void setUserBurst(int userBurst) {
+        this.userBurst = userBurst;
+    }
+
+    public double getRepoRate() {
+        return repoRate;
+    }
+
+    public void setRepoRate(double repoRate) {
+        this.repoRate = repoRate;
+    }
+
+    public int getRepoBurst() {
+        return repoBurst;
+    }
+
+    public void setRepoBurst(int repoBurst) {
+        this.repoBurst = repoBurst;
+    }
+
+}
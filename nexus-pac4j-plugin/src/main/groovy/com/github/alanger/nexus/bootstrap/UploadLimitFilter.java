@@ -0,0 +1,235 @@
+package com.github.alanger.nexus.bootstrap;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.alanger.nexus.plugin.repository.RepositoryRoute;
+
+/**
+ * Limit of concurrent uploads per blob store.
+ * 
+ * <p>
+ * Upload waits up to {@code maxWait} milliseconds for a permit of its blob store and gets 503 if the wait is over.
+ * With {@code fair} permits are granted in arrival order. Limiter of blob store and its statistics are kept
+ * while any repository is routed to the blob store, limiters of other blob stores are released when a limiter
+ * is created.
+ * 
+ * <pre>
+ * uploadLimit = com.github.alanger.nexus.bootstrap.UploadLimitFilter
+ * uploadLimit.methods = PUT,POST
+ * uploadLimit.maxConcurrentUploads = 16
+ * uploadLimit.maxWait = 5000
+ * uploadLimit.fair = true
+ * </pre>
+ */
+public class UploadLimitFilter extends QuotaFilter {
+
+    // Upper bounds of wait time histogram buckets in milliseconds, the last bucket is unbounded
+    public static final long[] WAIT_BUCKETS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+    protected int maxConcurrentUploads = 0; // 0 - unlimited
+
+    protected long maxWait = 0; // Milliseconds
+
+    protected boolean fair = false;
+
+    // Blob store name -> limiter, one per blob store for the life of the filter
+    protected final Map<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    public UploadLimitFilter() {
+        setResponseStatus(503); // Service Unavailable
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+
+        if (maxConcurrentUploads <= 0 || !enterPush(request, response)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        RepositoryRoute route = this.repositoryRoutingTable.get(getRepoName(request));
+        String storeName = route != null ? route.getBlobStoreName() : null;
+        if (storeName == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Limiter limiter = limiters.get(storeName);
+        if (limiter == null) {
+            limiter = limiters.computeIfAbsent(storeName, k -> new Limiter(maxConcurrentUploads, fair));
+            releaseUnrouted();
+        }
+        boolean acquired;
+        try {
+            acquired = limiter.acquire(maxWait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            String msg = format("Too many concurrent uploads to blob store %s", storeName);
+            response.setHeader("Retry-After", String.valueOf(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWait))));
+            // Also for UI upload, so that clients can retry
+            reject(request, response, getResponseStatus(), msg);
+            return;
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    /**
+     * Semaphore of blob store with queue depth and wait time statistics.
+     */
+    public static class Limiter {
+
+        protected final Semaphore semaphore;
+
+        protected final AtomicInteger waiting = new AtomicInteger();
+
+        protected final AtomicLong rejected = new AtomicLong();
+
+        protected final AtomicLongArray waitHistogram = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+
+        public Limiter(int permits, boolean fair) {
+            this.semaphore = new Semaphore(permits, fair);
+        }
+
+        public boolean acquire(long maxWait) throws InterruptedException {
+            // Untimed tryAcquire() would barge ahead of queued uploads of fair semaphore
+            if (semaphore.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                waitHistogram.incrementAndGet(0);
+                return true;
+            }
+            long start = System.nanoTime();
+            waiting.incrementAndGet();
+            try {
+                boolean acquired = semaphore.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+                if (acquired) {
+                    waitHistogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                } else {
+                    rejected.incrementAndGet();
+                }
+                return acquired;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        public void release() {
+            semaphore.release();
+        }
+
+        protected static int bucket(long millis) {
+            for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+                if (millis <= WAIT_BUCKETS[i]) {
+                    return i;
+                }
+            }
+            return WAIT_BUCKETS.length;
+        }
+
+        public int getAvailable() {
+            return semaphore.availablePermits();
+        }
+
+        public int getQueueDepth() {
+            return waiting.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @return upper bound of bucket in milliseconds ('+Inf' for the last) -> count of acquired permits
+         */
+        public Map<String, Long> getWaitHistogram() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int i = 0; i < WAIT_BUCKETS.length; i++) {
+                result.put(String.valueOf(WAIT_BUCKETS[i]), waitHistogram.get(i));
+            }
+            result.put("+Inf", waitHistogram.get(WAIT_BUCKETS.length));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "{available=" + getAvailable() + ", queueDepth=" + getQueueDepth() + ", rejected=" + getRejected()
+                    + ", waitHistogram=" + getWaitHistogram() + "}";
+        }
+    }
+
+    /**
+     * Release limiters of blob stores without repositories, uploads holding them release permits as usual.
+     */
+    protected void releaseUnrouted() {
+        Set<String> routed = new HashSet<>();
+        for (RepositoryRoute route : this.repositoryRoutingTable.routes().values()) {
+            routed.add(route.getBlobStoreName());
+        }
+        limiters.keySet().retainAll(routed);
+    }
+
+    @Override
+    public void destroy() {
+        limiters.clear();
+        super.destroy();
+    }
+
+    // Getters and Setters
+
+    public Map<String, Limiter> getLimiters() {
+        return Collections.unmodifiableMap(limiters);
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public boolean isFair() {
+        return fair;
+    }
+
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+}
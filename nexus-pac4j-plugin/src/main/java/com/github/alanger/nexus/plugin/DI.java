@@ -22,6 +22,8 @@ import org.sonatype.nexus.selector.SelectorManager;
 import com.github.alanger.nexus.plugin.datastore.EncryptedString;
 import com.github.alanger.nexus.plugin.realm.NexusPac4jRealm;
 import com.github.alanger.nexus.plugin.realm.NexusTokenRealm;
+import com.github.alanger.nexus.plugin.repository.ContentSelectorIndex;
+import com.github.alanger.nexus.plugin.repository.RepositoryRoutingTable;
 import com.github.alanger.nexus.plugin.resources.UiPac4jPluginDescriptor;
 import com.google.common.base.Preconditions;
 
@@ -83,6 +85,10 @@ public class DI extends StateGuardLifecycleSupport {
 
     public final EncryptedString encryptedString;
 
+    public final RepositoryRoutingTable repositoryRoutingTable;
+
+    public final ContentSelectorIndex contentSelectorIndex;
+
     @SuppressWarnings("java:S3010")
     @Inject
     public DI(@Named final DataStoreManager dataStoreManager //
@@ -100,7 +106,9 @@ public class DI extends StateGuardLifecycleSupport {
             , final RealmSecurityManager realmSecurityManager //
             , @Named final Init init // 
             , @Named(UiPac4jPluginDescriptor.NAME) final UiPac4jPluginDescriptor uiPac4jPluginDescriptor //
-            , @Named final EncryptedString encryptedString) {
+            , @Named final EncryptedString encryptedString //
+            , @Named final RepositoryRoutingTable repositoryRoutingTable //
+            , @Named final ContentSelectorIndex contentSelectorIndex) {
         super();
 
         this.dataStoreManager = Preconditions.checkNotNull(dataStoreManager);
@@ -122,6 +130,8 @@ public class DI extends StateGuardLifecycleSupport {
         this.selectorManager = Preconditions.checkNotNull(selectorManager);
         this.blobStoreManager = Preconditions.checkNotNull(blobStoreManager);
         this.blobStoreQuotaService = Preconditions.checkNotNull(blobStoreQuotaService);
+        this.repositoryRoutingTable = Preconditions.checkNotNull(repositoryRoutingTable);
+        this.contentSelectorIndex = Preconditions.checkNotNull(contentSelectorIndex);
 
         if (INSTANCE == null) {
             INSTANCE = this;
@@ -130,10 +140,12 @@ public class DI extends StateGuardLifecycleSupport {
 
         log.trace("DI dataStoreManager: {}, dataSource: {}, repositoryManager: {}, repositoryPermissionChecker: {}, securityHelper: {}" //
                 + ", selectorManager: {}, blobStoreManager: {}, blobStoreQuotaService: {}, securityConfiguration: {}, pac4jRealm: {}, tokenRealm: {}" //
-                + ", servletContext: {}, realmManager: {}, realmSecurityManager: {}, init: {}, uiPac4jPluginDescriptor: {}, encryptedString: {}", //
+                + ", servletContext: {}, realmManager: {}, realmSecurityManager: {}, init: {}, uiPac4jPluginDescriptor: {}, encryptedString: {}" //
+                + ", repositoryRoutingTable: {}, contentSelectorIndex: {}", //
                 dataStoreManager, dataSource, repositoryManager, repositoryPermissionChecker, securityHelper, selectorManager,
                 blobStoreManager, blobStoreQuotaService, securityConfiguration, pac4jRealm, tokenRealm, servletContext, realmManager,
-                realmSecurityManager, init, uiPac4jPluginDescriptor, encryptedString);
+                realmSecurityManager, init, uiPac4jPluginDescriptor, encryptedString, repositoryRoutingTable,
+                contentSelectorIndex);
     }
 
     @Override
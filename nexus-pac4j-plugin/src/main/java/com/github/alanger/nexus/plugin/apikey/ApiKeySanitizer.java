@@ -1,11 +1,14 @@
 package com.github.alanger.nexus.plugin.apikey;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.SimpleDateFormat;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import javax.annotation.Priority;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -18,12 +21,16 @@ import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
 import org.sonatype.nexus.datastore.api.DataStoreManager;
 import org.sonatype.nexus.internal.security.apikey.ApiKeyServiceImpl;
 import org.sonatype.nexus.kv.GlobalKeyValueStore;
+import org.sonatype.nexus.kv.NexusKeyValue;
+import org.sonatype.nexus.kv.ValueType;
 import org.sonatype.nexus.security.authc.apikey.ApiKey;
 import org.sonatype.nexus.security.authc.apikey.ApiKeyService;
 import org.sonatype.nexus.security.config.CUser;
 import org.sonatype.nexus.security.config.SecurityConfiguration;
 import com.github.alanger.nexus.plugin.datastore.EncryptedString;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Fix broken API V1 tokens.
@@ -36,6 +43,17 @@ import com.google.common.base.Preconditions;
  * DELETE API_KEY where DOMAIN = 'DockerToken'
  * </pre>
  * 
+ * <p>
+ * Since {@code 3.75.1-02} keys are read by pages of {@code nexus.sso.apikey.sanitizer.pageSize} rows (500 by default),
+ * each page is committed and its last key is saved to {@link GlobalKeyValueStore}, so an interrupted run is continued
+ * after restart.
+ * 
+ * <p>
+ * With {@code nexus.sso.apikey.sanitizer.async=true} keys are processed by a low priority background thread limited
+ * by {@code nexus.sso.apikey.sanitizer.rowsPerSecond}, so startup is not delayed. Until completion {@link ApiTokenService}
+ * treats affected domains as unsafe. Enable it only if {@code ApiKeyToSecretsTask} is not expected to run on this start,
+ * since the task may move keys to V2 table before they are sanitized.
+ * 
  * @since 3.75.1
  * 
  * @see org.sonatype.nexus.internal.security.apikey.upgrade.ApiKeyToSecretsTask
@@ -47,6 +65,25 @@ import com.google.common.base.Preconditions;
 @ManagedLifecycle(phase = Phase.UPGRADE) // Before TASKS
 public class ApiKeySanitizer extends StateGuardLifecycleSupport {
 
+    public static final String DOCKER_DOMAIN = "DockerToken";
+
+    public static final String RESUME_KEY = "nexus.sso.apikey.sanitizer.lastPrincipal";
+
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM api_key WHERE domain = ?";
+
+    private static final String SQL_SELECT_PAGE = "SELECT primary_principal, token, created FROM api_key"
+            + " WHERE domain = ? AND primary_principal > ? ORDER BY primary_principal LIMIT ?";
+
+    private static final String SQL_DELETE_DOMAIN = "DELETE FROM api_key WHERE domain = ?";
+
+    private static final String SQL_DELETE_PRINCIPAL = "DELETE FROM api_key WHERE primary_principal = ?";
+
+    private static final String SQL_DELETE_V1 = "DELETE FROM api_key WHERE domain = ? AND primary_principal = ?";
+
+    private static final String SQL_DELETE_V2 = "DELETE FROM api_key_v2 WHERE domain = ? AND username = ? AND access_key = ?";
+
+    private static final String SQL_UPDATE_V1 = "UPDATE api_key SET token = ?, created = ? WHERE domain = ? AND primary_principal = ?";
+
     private final GlobalKeyValueStore kv;
     private final SecurityConfiguration securityConfiguration;
     private final EncryptedString encryptedString;
@@ -60,12 +97,29 @@ public class ApiKeySanitizer extends StateGuardLifecycleSupport {
     // com.zaxxer.hikari.HikariDataSource (nexus)
     private final DataSource dataSource;
 
+    private final int pageSize;
+
+    private final ApiTokenService apiTokenService;
+
+    private final boolean async;
+
+    private final int rowsPerSecond;
+
+    // Throttle of background run, null if synchronous
+    private final RateLimiter rateLimiter;
+
+    private volatile Thread worker;
+
     @Inject
     public ApiKeySanitizer(final GlobalKeyValueStore kv //
             , final SecurityConfiguration securityConfiguration //
             , final ApiKeyService apiKeyService //
             , final EncryptedString encryptedString //
-            , final DataStoreManager dataStoreManager) {
+            , final DataStoreManager dataStoreManager //
+            , final ApiTokenService apiTokenService //
+            , @Named("${nexus.sso.apikey.sanitizer.pageSize:-500}") final int pageSize //
+            , @Named("${nexus.sso.apikey.sanitizer.async:-false}") final boolean async //
+            , @Named("${nexus.sso.apikey.sanitizer.rowsPerSecond:-500}") final int rowsPerSecond) {
         this.kv = Preconditions.checkNotNull(kv);
         this.securityConfiguration = Preconditions.checkNotNull(securityConfiguration);
         this.apiKeyService = Preconditions.checkNotNull(apiKeyService);
@@ -74,105 +128,259 @@ public class ApiKeySanitizer extends StateGuardLifecycleSupport {
         this.dataSource = dataStoreManager.get(DataStoreManager.DEFAULT_DATASTORE_NAME)
                 .orElseThrow(() -> new IllegalStateException("Missing DataStore named: " + DataStoreManager.DEFAULT_DATASTORE_NAME))
                 .getDataSource();
+        this.pageSize = Math.max(1, pageSize);
+        this.apiTokenService = Preconditions.checkNotNull(apiTokenService);
+        this.async = async;
+        this.rowsPerSecond = rowsPerSecond;
+        this.rateLimiter = async && rowsPerSecond > 0 ? RateLimiter.create(rowsPerSecond) : null;
     }
 
     /** @see org.sonatype.nexus.internal.security.apikey.ApiKeyServiceImpl#doStart */
     @Override
     protected void doStart() throws Exception {
         boolean secretMigrationComplete = kv.getBoolean(ApiKeyServiceImpl.MIGRATION_COMPLETE).orElse(false);
-        log.trace("ApiKeySanitizer doStart, secretMigrationComplete: {}", secretMigrationComplete);
-        if (!secretMigrationComplete) {
+        log.trace("ApiKeySanitizer doStart, secretMigrationComplete: {}, async: {}", secretMigrationComplete, async);
+        if (secretMigrationComplete) {
+            return;
+        }
+        if (!async) {
             sanitizeBrokenTokens();
+            return;
         }
+
+        apiTokenService.markUnsafe(ApiTokenService.DOMAIN);
+        apiTokenService.markUnsafe(DOCKER_DOMAIN);
+        worker = new ThreadFactoryBuilder().setNameFormat("sso-apikey-sanitizer").setDaemon(true).setPriority(Thread.MIN_PRIORITY)
+                .build().newThread(this::run);
+        worker.start();
+        log.info("ApiKeySanitizer started in background, rowsPerSecond: {}", rowsPerSecond);
     }
 
-    private void sanitizeBrokenTokens() {
+    @Override
+    protected void doStop() throws Exception {
+        if (worker != null) {
+            worker.interrupt();
+            worker.join(10000L);
+            worker = null;
+        }
+    }
+
+    private void run() {
+        boolean completed = false;
+        try {
+            completed = sanitizeBrokenTokens();
+        } catch (RuntimeException e) {
+            log.error("Error sanitize ApiKey V1 in background", e);
+        } finally {
+            // Not processed keys are continued on next start, domains must not stay unsafe until then
+            apiTokenService.markSafe(ApiTokenService.DOMAIN);
+            apiTokenService.markSafe(DOCKER_DOMAIN);
+            if (completed) {
+                log.info("ApiKeySanitizer completed in background");
+            } else {
+                log.warn("ApiKeySanitizer not completed in background, will be continued on next start");
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if all keys were processed
+     */
+    private boolean sanitizeBrokenTokens() {
         String domain = ApiTokenService.DOMAIN;
-        String sql = "SELECT * FROM api_key WHERE domain = '" + domain + "'";
-        log.info("Get ApiKey V1 SQL: {}", sql);
-        try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+        String resumeFrom = kv.getKey(RESUME_KEY).map(NexusKeyValue::getAsString).orElse(null);
+        log.info("Sanitize ApiKey V1, domain: {}, pageSize: {}, resume from: {}", domain, pageSize, resumeFrom);
 
-            // Delete all Docker tokens from V1 storage, it will be created when necessary
-            try (Statement stmtDeleteDockerV1 = conn.createStatement()) {
-                stmtDeleteDockerV1.execute("DELETE api_key WHERE domain = 'DockerToken'");
+        try {
+            if (resumeFrom == null) {
+                // Delete all Docker tokens from V1 storage, it will be created when necessary
+                try (Connection conn = dataSource.getConnection();
+                        PreparedStatement stmtDeleteDockerV1 = conn.prepareStatement(SQL_DELETE_DOMAIN)) {
+                    stmtDeleteDockerV1.setString(1, DOCKER_DOMAIN);
+                    stmtDeleteDockerV1.executeUpdate();
+                }
             }
 
-            // H2 timestamp format
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            long total;
+            try (Connection conn = dataSource.getConnection()) {
+                total = count(conn, domain);
+            }
 
-            while (rs.next()) {
-                String encPrincipal = rs.getString("PRIMARY_PRINCIPAL");
-                String principal = encryptedString.decrypt(encPrincipal);
-                String encToken = rs.getString("TOKEN");
-                String token = encryptedString.decrypt(encToken);
-                long created = rs.getTimestamp("CREATED").getTime();
-                String createdStr = sdf.format(created);
-
-                log.info("Key for principal: {} ({}), token: {}, created: {}", principal, encPrincipal,
-                        log.isTraceEnabled() ? token : "***", createdStr);
-
-                // Skip not exist user
-                CUser user = securityConfiguration.getUser(principal);
-                if (user == null) {
-                    sql = "DELETE FROM api_key WHERE primary_principal = '" + encPrincipal + "'";
-                    log.info("User is null, delete all token from V1 storage: {}", sql);
-                    try (Statement stmtDeleteV1 = conn.createStatement()) {
-                        stmtDeleteV1.execute(sql);
-                    }
-                    continue;
+            // Keyset pagination by encrypted primary principal, each page is committed and saved as resume point
+            long processed = 0;
+            String last = resumeFrom != null ? resumeFrom : "";
+            List<Row> page;
+            do {
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(pageSize);
                 }
-                String realmName = "[pac4jRealm]".equals(user.getPassword()) ? "pac4jRealm" : "NexusAuthorizingRealm";
-                log.trace("User id: {}, status: {}, password: {}, realm: {}", user.getId(), user.getStatus(), //
-                        user.getPassword(), realmName);
-
-                try {
-                    // Detect broken token in V1 storage
-                    Optional<ApiKey> apiKey = apiKeyService.getApiKeyByToken(domain, token.toCharArray());
-
-                    if (apiKey.isPresent() && !(apiKey.get().getPrincipals().getPrimaryPrincipal() instanceof String)) {
-                        log.trace("Principal class: {}, collection class: {}",
-                                apiKey.get().getPrincipals().getPrimaryPrincipal().getClass(), apiKey.get().getPrincipals().getClass());
-                        throw new IllegalStateException("Principal class not string: " //
-                                + apiKey.get().getPrincipals().getPrimaryPrincipal().getClass());
-                    }
-                } catch (Exception te) {
-                    try {
-                        log.info("Detected broken token in V1 storage for principal: {} ({}), cause by: {}", principal, encPrincipal,
-                                te.getMessage());
-
-                        SimplePrincipalCollection principals = new SimplePrincipalCollection(principal, realmName);
-
-                        sql = "DELETE FROM api_key WHERE domain = '" + domain + "' AND primary_principal = '" + encPrincipal + "'";
-                        log.trace("  1 Delete old broken token from V1 storage: {}", sql);
-                        try (Statement stmtDeleteV1 = conn.createStatement()) {
-                            stmtDeleteV1.execute(sql);
-                        }
-
-                        log.trace("  2 Create new token in V1 and V2 storage for principal: {} ({})", principal, encPrincipal);
-                        String newKey = new String(apiKeyService.createApiKey(domain, principals)); // Creates in V1 and V2 if NOT mirgated
-
-                        sql = "DELETE FROM api_key_v2 WHERE domain = '" + domain + "' AND username = '" + principal + "' AND access_key = '"
-                                + newKey.replaceAll("-([a-zA-Z0-9]*)-([a-zA-Z0-9]*)$", "") + "'"; // Trim key for V2 storage format
-                        log.trace("  3 Delete duplicate token from V2 storage: {}", sql);
-                        try (Statement stmtDeleteV2 = conn.createStatement()) {
-                            stmtDeleteV2.execute(sql);
-                        }
-
-                        sql = "UPDATE api_key SET token = '" + encToken + "', created = (TIMESTAMP '" + createdStr + "') WHERE domain = '"
-                                + domain + "' AND primary_principal = '" + encPrincipal + "'";
-                        log.trace("  4 Set old value to new token in V1 storage: {}", sql);
-                        try (Statement stmtUpdateV1 = conn.createStatement()) {
-                            stmtUpdateV1.execute(sql);
-                        }
-
-                        log.info("Recreated broken token in V1 storage for principal: {} ({})", principal, encPrincipal);
-                    } catch (Exception se) {
-                        log.error("Error sanitize token for principal: {}", principal, se);
-                    }
+                if (Thread.currentThread().isInterrupted()) {
+                    log.info("Sanitize ApiKey V1 interrupted, processed: {} of {}, resume from: {}", processed, total, last);
+                    return false;
                 }
-            }
+
+                page = sanitizePage(domain, last);
+                if (!page.isEmpty()) {
+                    last = page.get(page.size() - 1).encPrincipal;
+                    kv.setKey(new NexusKeyValue(RESUME_KEY, ValueType.CHARACTER, last));
+                }
+                processed += page.size();
+                log.info("Sanitized ApiKey V1: {} of {}", processed, total);
+            } while (page.size() == pageSize);
+
+            kv.removeKey(RESUME_KEY);
+            return true;
         } catch (SQLException sqle) {
             log.error("Error sanitizeBrokenTokens", sqle);
+            return false;
+        }
+    }
+
+    /**
+     * Connection is held only for one page, so background run does not starve the pool.
+     */
+    private List<Row> sanitizePage(String domain, String last) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmtSelect = conn.prepareStatement(SQL_SELECT_PAGE);
+                    PreparedStatement stmtDeleteUser = conn.prepareStatement(SQL_DELETE_PRINCIPAL)) {
+                stmtSelect.setFetchSize(pageSize);
+
+                List<Row> page = readPage(stmtSelect, domain, last);
+                List<String> principals = encryptedString.decryptAll(page.stream().map(r -> r.encPrincipal).collect(Collectors.toList()));
+                List<String> tokens = encryptedString.decryptAll(page.stream().map(r -> r.encToken).collect(Collectors.toList()));
+                for (int i = 0; i < page.size(); i++) {
+                    sanitizeRow(conn, stmtDeleteUser, domain, page.get(i), principals.get(i), tokens.get(i));
+                }
+                stmtDeleteUser.executeBatch();
+                conn.commit();
+                return page;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private long count(Connection conn, String domain) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(SQL_COUNT)) {
+            stmt.setString(1, domain);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    private List<Row> readPage(PreparedStatement stmtSelect, String domain, String last) throws SQLException {
+        stmtSelect.setString(1, domain);
+        stmtSelect.setString(2, last);
+        stmtSelect.setInt(3, pageSize);
+        List<Row> page = new ArrayList<>(pageSize);
+        try (ResultSet rs = stmtSelect.executeQuery()) {
+            while (rs.next()) {
+                page.add(new Row(rs.getString("PRIMARY_PRINCIPAL"), rs.getString("TOKEN"), rs.getTimestamp("CREATED")));
+            }
+        }
+        return page;
+    }
+
+    private void sanitizeRow(Connection conn, PreparedStatement stmtDeleteUser, String domain, Row row, String principal,
+            String token) throws SQLException {
+        String encPrincipal = row.encPrincipal;
+        Timestamp created = row.created;
+
+        log.debug("Key for principal: {} ({}), token: {}, created: {}", principal, encPrincipal,
+                log.isTraceEnabled() ? token : "***", created);
+
+        // Skip not exist user
+        CUser user = securityConfiguration.getUser(principal);
+        if (user == null) {
+            log.info("User {} is null, delete all token from V1 storage", principal);
+            stmtDeleteUser.setString(1, encPrincipal);
+            stmtDeleteUser.addBatch();
+            return;
+        }
+        String realmName = "[pac4jRealm]".equals(user.getPassword()) ? "pac4jRealm" : "NexusAuthorizingRealm";
+        log.trace("User id: {}, status: {}, password: {}, realm: {}", user.getId(), user.getStatus(), //
+                user.getPassword(), realmName);
+
+        try {
+            // Detect broken token in V1 storage
+            Optional<ApiKey> apiKey = apiKeyService.getApiKeyByToken(domain, token.toCharArray());
+
+            if (apiKey.isPresent() && !(apiKey.get().getPrincipals().getPrimaryPrincipal() instanceof String)) {
+                log.trace("Principal class: {}, collection class: {}",
+                        apiKey.get().getPrincipals().getPrimaryPrincipal().getClass(), apiKey.get().getPrincipals().getClass());
+                throw new IllegalStateException("Principal class not string: " //
+                        + apiKey.get().getPrincipals().getPrimaryPrincipal().getClass());
+            }
+        } catch (Exception te) {
+            log.info("Detected broken token in V1 storage for principal: {} ({}), cause by: {}", principal, encPrincipal,
+                    te.getMessage());
+            // Pending deletions must be visible to ApiKeyService, which uses its own connection
+            stmtDeleteUser.executeBatch();
+            conn.commit();
+            recreateToken(conn, domain, principal, realmName, row);
+        }
+    }
+
+    private void recreateToken(Connection conn, String domain, String principal, String realmName, Row row) {
+        String encPrincipal = row.encPrincipal;
+        try {
+            SimplePrincipalCollection principals = new SimplePrincipalCollection(principal, realmName);
+
+            log.trace("  1 Delete old broken token from V1 storage for principal: {} ({})", principal, encPrincipal);
+            try (PreparedStatement stmtDeleteV1 = conn.prepareStatement(SQL_DELETE_V1)) {
+                stmtDeleteV1.setString(1, domain);
+                stmtDeleteV1.setString(2, encPrincipal);
+                stmtDeleteV1.executeUpdate();
+            }
+            conn.commit();
+
+            log.trace("  2 Create new token in V1 and V2 storage for principal: {} ({})", principal, encPrincipal);
+            String newKey = new String(apiKeyService.createApiKey(domain, principals)); // Creates in V1 and V2 if NOT mirgated
+
+            log.trace("  3 Delete duplicate token from V2 storage for principal: {}", principal);
+            try (PreparedStatement stmtDeleteV2 = conn.prepareStatement(SQL_DELETE_V2)) {
+                stmtDeleteV2.setString(1, domain);
+                stmtDeleteV2.setString(2, principal);
+                stmtDeleteV2.setString(3, newKey.replaceAll("-([a-zA-Z0-9]*)-([a-zA-Z0-9]*)$", "")); // Trim key for V2 storage format
+                stmtDeleteV2.executeUpdate();
+            }
+
+            log.trace("  4 Set old value to new token in V1 storage for principal: {} ({})", principal, encPrincipal);
+            try (PreparedStatement stmtUpdateV1 = conn.prepareStatement(SQL_UPDATE_V1)) {
+                stmtUpdateV1.setString(1, row.encToken);
+                stmtUpdateV1.setTimestamp(2, row.created);
+                stmtUpdateV1.setString(3, domain);
+                stmtUpdateV1.setString(4, encPrincipal);
+                stmtUpdateV1.executeUpdate();
+            }
+            conn.commit();
+
+            log.info("Recreated broken token in V1 storage for principal: {} ({})", principal, encPrincipal);
+        } catch (Exception se) {
+            log.error("Error sanitize token for principal: {}", principal, se);
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                log.debug("Rollback error", e);
+            }
+        }
+    }
+
+    private static final class Row {
+        private final String encPrincipal;
+        private final String encToken;
+        private final Timestamp created;
+
+        private Row(String encPrincipal, String encToken, Timestamp created) {
+            this.encPrincipal = encPrincipal;
+            this.encToken = encToken;
+            this.created = created;
         }
     }
 
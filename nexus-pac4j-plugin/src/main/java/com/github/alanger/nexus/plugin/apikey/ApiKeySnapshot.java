@@ -0,0 +1,64 @@
+package com.github.alanger.nexus.plugin.apikey;
+
+import java.util.Objects;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.sonatype.nexus.security.authc.apikey.ApiKey;
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable view of {@link ApiKey} held by the in-memory token index of {@link ApiTokenService}.
+ * Token itself is not kept, only domain, principals and creation time.
+ * 
+ * @since 3.75.1-02
+ */
+public final class ApiKeySnapshot {
+
+    private final String domain;
+
+    private final String primaryPrincipal;
+
+    private final PrincipalCollection principals;
+
+    private final long created;
+
+    public ApiKeySnapshot(String domain, ApiKey apiKey) {
+        Preconditions.checkNotNull(apiKey);
+        this.domain = Preconditions.checkNotNull(domain);
+        this.principals = apiKey.getPrincipals();
+        this.primaryPrincipal = String.valueOf(apiKey.getPrimaryPrincipal());
+        this.created = apiKey.getCreated().toInstant().toEpochMilli();
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getPrimaryPrincipal() {
+        return primaryPrincipal;
+    }
+
+    public PrincipalCollection getPrincipals() {
+        return principals;
+    }
+
+    /**
+     * Creation time in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Snapshot belongs to the domain and primary principal.
+     */
+    public boolean matches(String domain, PrincipalCollection principals) {
+        return this.domain.equals(domain) && principals != null
+                && Objects.equals(primaryPrincipal, String.valueOf(principals.getPrimaryPrincipal()));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{domain=" + domain + ", primaryPrincipal=" + primaryPrincipal + ", created=" + created + "}";
+    }
+
+}
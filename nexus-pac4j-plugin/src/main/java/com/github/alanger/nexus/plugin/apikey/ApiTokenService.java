@@ -2,23 +2,62 @@ package com.github.alanger.nexus.plugin.apikey;
 
 import com.github.alanger.nexus.plugin.datastore.EncryptedString;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
+import java.nio.CharBuffer;
+import java.security.SecureRandom;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.subject.PrincipalCollection;
-import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
 import org.sonatype.nexus.security.authc.apikey.ApiKey;
 import org.sonatype.nexus.security.authc.apikey.ApiKeyService;
 
 import org.sonatype.nexus.security.config.SecurityConfiguration;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+
 /**
  * API Token service for "NuGet API Key".
  * 
+ * <p>
+ * Since {@code 3.75.1-02} supports optional in-memory token index, which allows to authenticate
+ * by token without access to the database. Enable it in {@code nexus.properties}:
+ * 
+ * <pre>
+ * nexus.sso.token.index.enabled=true
+ * nexus.sso.token.index.maxSize=10000
+ * nexus.sso.token.index.ttl=300
+ * </pre>
+ * 
+ * <p>
+ * Tokens deleted bypassing this service (e.g. by other node or directly in the database) remain in the index
+ * no longer than {@code nexus.sso.token.index.ttl} seconds.
+ * 
+ * <p>
+ * Domain may be marked as unsafe while {@link ApiKeySanitizer} repairs it in background, lookups in such domain
+ * go to the database directly, are not indexed and broken tokens are treated as missing.
+ * 
  * @since 3.70.1-02
  * 
  * @see org.sonatype.nexus.internal.security.apikey.ApiKeyServiceImpl
@@ -26,7 +65,8 @@ import org.sonatype.nexus.security.config.SecurityConfiguration;
  */
 @Singleton
 @Named
-public class ApiTokenService extends ComponentSupport {
+@ManagedLifecycle(phase = SERVICES)
+public class ApiTokenService extends StateGuardLifecycleSupport {
 
     public static final String DOMAIN = "NuGetApiKey";
 
@@ -37,41 +77,155 @@ public class ApiTokenService extends ComponentSupport {
      */
     private final ApiKeyService apiKeyService;
 
+    private final boolean indexEnabled;
+
+    private final int indexMaxSize;
+
+    // Salt of token digest, tokens are never stored in the index as is
+    private final byte[] indexSalt = new byte[16];
+
+    // Salted token digest -> API key, least recently used and expired entries are evicted
+    private final Cache<HashCode, ApiKeySnapshot> index;
+
+    // Incremented on each change of tokens, prevents caching of lookups that raced with the change
+    private final AtomicLong indexGeneration = new AtomicLong();
+
+    // Guards check of generation with put, and change of generation with eviction
+    private final Object indexLock = new Object();
+
+    // Domains not yet sanitized by ApiKeySanitizer
+    private final Set<String> unsafeDomains = ConcurrentHashMap.newKeySet();
+
+    // Notified after each token creation, e.g. to forget failed lookups of the new token
+    private final List<Runnable> createListeners = new CopyOnWriteArrayList<>();
+
     @Inject
     public ApiTokenService(final EncryptedString encryptedString //
             , final SecurityConfiguration securityConfiguration //
-            , final ApiKeyService apiKeyService) {
+            , final ApiKeyService apiKeyService //
+            , @Named("${nexus.sso.token.index.enabled:-false}") final boolean indexEnabled //
+            , @Named("${nexus.sso.token.index.maxSize:-10000}") final int indexMaxSize //
+            , @Named("${nexus.sso.token.index.ttl:-300}") final long indexTtl) {
         this.apiKeyService = Preconditions.checkNotNull(apiKeyService);
-        log.trace("ApiTokenService: {}, apiKeyService: {}", this, apiKeyService);
+        this.indexEnabled = indexEnabled;
+        this.indexMaxSize = indexMaxSize;
+        new SecureRandom().nextBytes(indexSalt);
+        this.index = CacheBuilder.newBuilder() //
+                .maximumSize(Math.max(0, indexMaxSize)) //
+                .expireAfterWrite(Math.max(0, indexTtl), TimeUnit.SECONDS) //
+                .build();
+        log.trace("ApiTokenService: {}, apiKeyService: {}, indexEnabled: {}, indexMaxSize: {}, indexTtl: {}", this, apiKeyService,
+                indexEnabled, indexMaxSize, indexTtl);
+    }
+
+    /** Warm up token index */
+    @Override
+    protected void doStart() throws Exception {
+        if (!indexEnabled) {
+            return;
+        }
+        if (!isSafe(DOMAIN)) {
+            log.info("Token index is not warmed up, domain: {} is not sanitized yet", DOMAIN);
+            return;
+        }
+        try {
+            int count = 0;
+            long generation = indexGeneration.get();
+            for (ApiKey key : this.apiKeyService.browse(DOMAIN)) {
+                if (count++ >= indexMaxSize) {
+                    break;
+                }
+                if (!putIndex(generation, digest(DOMAIN, key.getApiKey()), new ApiKeySnapshot(DOMAIN, key))) {
+                    break;
+                }
+            }
+            log.info("Token index warmed up, domain: {}, size: {}", DOMAIN, index.size());
+        } catch (Exception e) {
+            log.warn("Error warm up token index, domain: {}", DOMAIN, e);
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        invalidateIndex();
     }
 
     public char[] createApiKey(String domain, PrincipalCollection principals) {
-        char[] key = this.apiKeyService.createApiKey(domain, principals);
-        return Objects.requireNonNull(key, "apiKeyStore returned null apikey for principals: " + principals);
+        evict(domain, principals);
+        try {
+            char[] key = this.apiKeyService.createApiKey(domain, principals);
+            return Objects.requireNonNull(key, "apiKeyStore returned null apikey for principals: " + principals);
+        } finally {
+            // Token may have been stored even if the call failed
+            fireCreated(domain);
+        }
     }
 
     public char[] createApiKey(PrincipalCollection principals) {
         return this.createApiKey(DOMAIN, principals);
     }
 
+    /**
+     * Replace existing API key of principals or create a new one.
+     * 
+     * @since 3.75.1-02
+     */
+    public char[] rotateApiKey(String domain, PrincipalCollection principals) {
+        this.deleteApiKey(domain, principals);
+        return this.createApiKey(domain, principals);
+    }
+
+    /**
+     * Find API key by token in the database, the index is not used since it does not keep tokens.
+     */
     public Optional<ApiKey> findApiKey(String domain, UsernamePasswordToken token, boolean domainAsLogin) {
+        return findKey(domain, token, domainAsLogin, this::getApiKeyByToken, ApiKey::getPrimaryPrincipal);
+    }
+
+    public Optional<ApiKey> findApiKey(UsernamePasswordToken token, boolean domainAsLogin) {
+        return findApiKey(DOMAIN, token, domainAsLogin);
+    }
+
+    /** For compatibility with 3.70.1-java11-ubi-BETA-3 */
+    public Optional<ApiKey> findApiKey(UsernamePasswordToken token) {
+        return findApiKey(DOMAIN, token, false);
+    }
+
+    /**
+     * Same as {@link #findApiKey(String, UsernamePasswordToken, boolean)}, but returns snapshot with
+     * precomputed creation time.
+     * 
+     * @since 3.75.1-02
+     */
+    public Optional<ApiKeySnapshot> findApiKeySnapshot(String domain, UsernamePasswordToken token, boolean domainAsLogin) {
+        return findKey(domain, token, domainAsLogin, this::getApiKeySnapshotByToken, ApiKeySnapshot::getPrimaryPrincipal);
+    }
+
+    /**
+     * Lookup of token by login, shared by {@link ApiKey} and {@link ApiKeySnapshot}.
+     * 
+     * @param byToken Lookup of key by domain and token
+     * @param primaryPrincipal Primary principal of found key
+     */
+    private <T> Optional<T> findKey(String domain, UsernamePasswordToken token, boolean domainAsLogin,
+            BiFunction<String, char[], Optional<T>> byToken, Function<T, Object> primaryPrincipal) {
         String username = token.getUsername();
-        Optional<ApiKey> key = Optional.empty();
+        Optional<T> key = Optional.empty();
 
         if (username != null) {
             // Domain as login for "DockerToken:XXXXX" if org.sonatype.nexus.security.authc.NexusApiKeyAuthenticationToken
             if (domainAsLogin) {
-                key = this.apiKeyService.getApiKeyByToken(username, token.getPassword());
+                key = byToken.apply(username, token.getPassword());
                 if (key.isPresent()) {
-                    log.trace("findApiKey principal: {}, domain as login: {}", key.get().getPrimaryPrincipal(), username);
+                    log.trace("findApiKey principal: {}, domain as login: {}", primaryPrincipal.apply(key.get()), username);
                     return key;
                 }
             }
 
             // Default domain for "Username:XXXXX" if org.apache.shiro.authc.UsernamePasswordToken
-            key = this.apiKeyService.getApiKeyByToken(domain, token.getPassword());
-            if (key.isPresent() && username.equals(key.get().getPrimaryPrincipal())) {
-                log.trace("findApiKey principal: {}, default domain: {}", key.get().getPrimaryPrincipal(), domain);
+            key = byToken.apply(domain, token.getPassword());
+            if (key.isPresent() && username.equals(primaryPrincipal.apply(key.get()))) {
+                log.trace("findApiKey principal: {}, default domain: {}", primaryPrincipal.apply(key.get()), domain);
                 return key;
             }
         }
@@ -79,13 +233,47 @@ public class ApiTokenService extends ComponentSupport {
         return key;
     }
 
-    public Optional<ApiKey> findApiKey(UsernamePasswordToken token, boolean domainAsLogin) {
-        return findApiKey(DOMAIN, token, domainAsLogin);
+    public Optional<ApiKeySnapshot> findApiKeySnapshot(UsernamePasswordToken token, boolean domainAsLogin) {
+        return findApiKeySnapshot(DOMAIN, token, domainAsLogin);
     }
 
-    /** For compatibility with 3.70.1-java11-ubi-BETA-3 */
-    public Optional<ApiKey> findApiKey(UsernamePasswordToken token) {
-        return findApiKey(DOMAIN, token, false);
+    /**
+     * Find API key by token in the database, broken tokens of unsafe domain are treated as missing.
+     * 
+     * @since 3.75.1-02
+     */
+    public Optional<ApiKey> getApiKeyByToken(String domain, char[] token) {
+        if (!isSafe(domain)) {
+            try {
+                return this.apiKeyService.getApiKeyByToken(domain, token);
+            } catch (Exception e) {
+                log.debug("Error get API key by token in unsafe domain: {}, cause by: {}", domain, e.getMessage());
+                return Optional.empty();
+            }
+        }
+        return this.apiKeyService.getApiKeyByToken(domain, token);
+    }
+
+    /**
+     * Find API key by token in the index, or in the database if the index is disabled or does not contain the token.
+     */
+    private Optional<ApiKeySnapshot> getApiKeySnapshotByToken(String domain, char[] token) {
+        if (!indexEnabled || token == null || !isSafe(domain)) {
+            return getApiKeyByToken(domain, token).map(k -> new ApiKeySnapshot(domain, k));
+        }
+
+        HashCode digest = digest(domain, token);
+        ApiKeySnapshot snapshot = index.getIfPresent(digest);
+        if (snapshot != null) {
+            return Optional.of(snapshot);
+        }
+
+        long generation = indexGeneration.get();
+        Optional<ApiKeySnapshot> key = getApiKeyByToken(domain, token).map(k -> new ApiKeySnapshot(domain, k));
+        if (key.isPresent()) {
+            putIndex(generation, digest, key.get());
+        }
+        return key;
     }
 
     public Optional<ApiKey> getApiKey(String domain, PrincipalCollection principals) {
@@ -107,12 +295,144 @@ public class ApiTokenService extends ComponentSupport {
     public void deleteApiKey(String domain, PrincipalCollection principals) {
         // May not return an error even if the deletion failed
         this.apiKeyService.deleteApiKey(domain, principals);
+        evict(domain, principals);
     }
 
     public void deleteApiKey(PrincipalCollection principals) {
         this.deleteApiKey(DOMAIN, principals);
     }
 
+    /**
+     * Delete ApiKeys of several principals in one domain, the index is evicted once for the whole batch.
+     * 
+     * @return principals whose keys could not be deleted
+     * @since 3.75.1-02
+     */
+    public List<PrincipalCollection> deleteApiKeys(String domain, Collection<PrincipalCollection> principals) {
+        List<PrincipalCollection> failed = new ArrayList<>();
+        try {
+            for (PrincipalCollection p : principals) {
+                try {
+                    // ApiKeyService has no bulk delete by principals
+                    this.apiKeyService.deleteApiKey(domain, p);
+                } catch (Exception e) {
+                    log.warn("Error delete token, domain: {}, principal: {}", domain, p.getPrimaryPrincipal(), e);
+                    failed.add(p);
+                }
+            }
+        } finally {
+            evict(domain, principals);
+        }
+        return failed;
+    }
+
+    // Index
+
+    private HashCode digest(String domain, char[] token) {
+        return Hashing.sha256().newHasher() //
+                .putBytes(indexSalt) //
+                .putString(domain, UTF_8) //
+                .putByte((byte) 0) //
+                .putString(CharBuffer.wrap(token), UTF_8) //
+                .hash();
+    }
+
+    /**
+     * Put snapshot to the index, if tokens were not changed since the generation was read.
+     * 
+     * @return {@code false} if tokens were changed
+     */
+    private boolean putIndex(long generation, HashCode digest, ApiKeySnapshot snapshot) {
+        synchronized (indexLock) {
+            if (generation != indexGeneration.get()) {
+                return false;
+            }
+            index.put(digest, snapshot);
+            return true;
+        }
+    }
+
+    private void evict(String domain, PrincipalCollection principals) {
+        evict(domain, Collections.singleton(principals));
+    }
+
+    private void evict(String domain, Collection<PrincipalCollection> principals) {
+        synchronized (indexLock) {
+            indexGeneration.incrementAndGet();
+            if (indexEnabled) {
+                index.asMap().values().removeIf(s -> principals.stream().anyMatch(p -> s.matches(domain, p)));
+            }
+        }
+    }
+
+    public void invalidateIndex() {
+        synchronized (indexLock) {
+            indexGeneration.incrementAndGet();
+            index.invalidateAll();
+        }
+    }
+
+    public boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    public long getIndexSize() {
+        return index.size();
+    }
+
+    // Listeners
+
+    /**
+     * Add listener called after a token is created or rotated through this service.
+     * 
+     * @since 3.75.1-02
+     */
+    public void addCreateListener(Runnable listener) {
+        createListeners.add(Preconditions.checkNotNull(listener));
+    }
+
+    public void removeCreateListener(Runnable listener) {
+        createListeners.remove(listener);
+    }
+
+    private void fireCreated(String domain) {
+        for (Runnable listener : createListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("Error notify listener of token creation, domain: {}", domain, e);
+            }
+        }
+    }
+
+    // Unsafe domains
+
+    /**
+     * Mark domain as not sanitized, see {@link ApiKeySanitizer}.
+     * 
+     * @since 3.75.1-02
+     */
+    public void markUnsafe(String domain) {
+        unsafeDomains.add(domain);
+        invalidateIndex();
+        log.debug("Domain marked as unsafe: {}", domain);
+    }
+
+    public void markSafe(String domain) {
+        if (unsafeDomains.remove(domain)) {
+            invalidateIndex();
+            log.debug("Domain marked as safe: {}", domain);
+        }
+    }
+
+    public boolean isSafe(String domain) {
+        return !unsafeDomains.contains(domain);
+    }
+
+    public boolean isSafe() {
+        return unsafeDomains.isEmpty();
+    }
+
     // Utils
 
     public static final long ONE_DAY_IN_MILLS = 1000L * 60L * 60L * 24L;
@@ -137,4 +457,22 @@ public class ApiTokenService extends ComponentSupport {
         return ONE_DAY_IN_MILLS * expirationDays + userToken.getCreated().toInstant().toEpochMilli();
     }
 
+    /**
+     * Absolute expiration deadline in milliseconds since the epoch, {@link Long#MAX_VALUE} if expiration is disabled.
+     * 
+     * @since 3.75.1-02
+     */
+    public static long getExpirationTimeStamp(long created, int expirationDays) {
+        return isExpirationEnabled(expirationDays) ? ONE_DAY_IN_MILLS * expirationDays + created : Long.MAX_VALUE;
+    }
+
+    /**
+     * Deadline has passed, allocation free check for authentication hot path.
+     * 
+     * @since 3.75.1-02
+     */
+    public static boolean isExpired(long expirationTimeStamp) {
+        return System.currentTimeMillis() > expirationTimeStamp;
+    }
+
 }
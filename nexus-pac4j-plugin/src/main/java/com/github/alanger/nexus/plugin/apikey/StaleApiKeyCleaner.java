@@ -0,0 +1,191 @@
+package com.github.alanger.nexus.plugin.apikey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.SERVICES;
+import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
+
+/**
+ * Background removal of API tokens of users which no longer exist.
+ * Requests are queued by the token realm and drained in batches grouped by domain,
+ * so that authentication does not wait for the database. ApiKeyService has no bulk delete,
+ * so tokens are deleted from the database one by one, the token index is evicted once per domain.
+ * 
+ * <p>
+ * Queue depth, drained, dropped count and drain rate are registered in the Nexus metrics
+ * under the {@code com.github.alanger.nexus.plugin.apikey.StaleApiKeyCleaner} prefix.
+ * 
+ * <pre>
+ * nexus.sso.token.cleanup.queueSize=1000
+ * nexus.sso.token.cleanup.batchSize=100
+ * </pre>
+ * 
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.plugin.realm.NexusTokenRealm
+ */
+@Singleton
+@Named
+@ManagedLifecycle(phase = SERVICES)
+public class StaleApiKeyCleaner extends StateGuardLifecycleSupport {
+
+    private static final class Request {
+        private final String domain;
+        private final String key;
+        private final PrincipalCollection principals;
+
+        private Request(String domain, PrincipalCollection principals) {
+            this.domain = domain;
+            this.key = domain + ":" + principals.getPrimaryPrincipal();
+            this.principals = principals;
+        }
+    }
+
+    private final ApiTokenService apiTokenService;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Request> queue;
+
+    // Domain and primary principal of queued requests, prevents duplicates
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final MetricRegistry metricRegistry;
+
+    private final Meter drained = new Meter();
+
+    private final Counter dropped = new Counter();
+
+    private Thread worker;
+
+    @Inject
+    public StaleApiKeyCleaner(final ApiTokenService apiTokenService //
+            , final MetricRegistry metricRegistry //
+            , @Named("${nexus.sso.token.cleanup.queueSize:-1000}") final int queueSize //
+            , @Named("${nexus.sso.token.cleanup.batchSize:-100}") final int batchSize) {
+        this.apiTokenService = Preconditions.checkNotNull(apiTokenService);
+        this.metricRegistry = Preconditions.checkNotNull(metricRegistry);
+        this.batchSize = Math.max(1, batchSize);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        log.trace("StaleApiKeyCleaner apiTokenService: {}, queueSize: {}, batchSize: {}", apiTokenService, queueSize, batchSize);
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        metricRegistry.register(metricName("queueDepth"), (Gauge<Integer>) this::getQueueDepth);
+        metricRegistry.register(metricName("drained"), drained);
+        metricRegistry.register(metricName("dropped"), dropped);
+        worker = new ThreadFactoryBuilder().setNameFormat("sso-stale-token-cleaner").setDaemon(true).build().newThread(this::run);
+        worker.start();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        worker.interrupt();
+        worker.join(10000L);
+        worker = null;
+        // Not deleted tokens will be queued again on next login
+        log.debug("Stale token cleaner stopped, not processed: {}", queue.size());
+        queue.clear();
+        pending.clear();
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(metricName("")));
+    }
+
+    private static String metricName(String name) {
+        return MetricRegistry.name(StaleApiKeyCleaner.class, name);
+    }
+
+    /**
+     * Queue deletion of API token, deletes synchronously if the cleaner is not running.
+     * 
+     * @return {@code false} if the queue is full and the request was dropped
+     */
+    public boolean enqueue(String domain, PrincipalCollection principals) {
+        if (!getStateGuard().is(STARTED)) {
+            apiTokenService.deleteApiKey(domain, principals);
+            return true;
+        }
+
+        Request request = new Request(domain, principals);
+        if (!pending.add(request.key)) {
+            return true; // Already queued
+        }
+        if (!queue.offer(request)) {
+            pending.remove(request.key);
+            dropped.inc();
+            log.debug("Stale token queue is full, drop deletion for principal: {}", principals.getPrimaryPrincipal());
+            return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.warn("Error delete stale tokens", e);
+            } finally {
+                for (Request request : batch) {
+                    pending.remove(request.key);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<Request> batch) {
+        Map<String, List<PrincipalCollection>> byDomain = new LinkedHashMap<>();
+        for (Request request : batch) {
+            byDomain.computeIfAbsent(request.domain, d -> new ArrayList<>()).add(request.principals);
+        }
+        for (Map.Entry<String, List<PrincipalCollection>> entry : byDomain.entrySet()) {
+            int count = entry.getValue().size() - apiTokenService.deleteApiKeys(entry.getKey(), entry.getValue()).size();
+            drained.mark(count);
+            log.debug("Deleted stale tokens, domain: {}, count: {}", entry.getKey(), count);
+        }
+    }
+
+    // Metrics
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDrainedCount() {
+        return drained.getCount();
+    }
+
+    /** Deleted tokens per second, one minute moving average */
+    public double getDrainRate() {
+        return drained.getOneMinuteRate();
+    }
+
+    public long getDroppedCount() {
+        return dropped.getCount();
+    }
+
+}
@@ -1,17 +1,45 @@
 package com.github.alanger.nexus.plugin.datastore;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Singleton;
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
 import org.sonatype.nexus.crypto.LegacyCipherFactory; // since 3.75.1
 import org.sonatype.nexus.crypto.LegacyCipherFactory.PbeCipher; // since 3.75.1
 import com.fasterxml.jackson.core.Base64Variant;
 import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.sonatype.nexus.common.app.ManagedLifecycle.Phase.STORAGE;
 
 /**
  * This class should be used if you need to search in database on the encrypted string.
  * 
+ * <p>
+ * Since {@code 3.75.1-02} bulk operations {@link #encryptAll(Collection)} and {@link #decryptAll(Collection)} process
+ * values on a dedicated fork-join pool ({@code nexus.sso.cipher.parallelism}, number of cores by default), each worker
+ * thread has its own cipher instance and Base64 buffer. Smaller batches are processed in the calling thread with
+ * a buffer of the call, so request threads do not keep per-thread state. The pool is shut down when the component
+ * stops (after {@code UPGRADE} phase), later bulk operations are processed in the calling thread.
+ * 
+ * <p>
+ * Single value operations borrow a cipher from a bounded pool of the same size, so concurrent calls do not share
+ * one instance. Pooled ciphers are created lazily, the PBE key of each is derived once on creation and reused while
+ * the pool lives. If all pooled ciphers are busy, the call waits for a released one, the shared cipher
+ * {@link #cipher()} is never used by this class concurrently.
+ * 
  * @see org.sonatype.nexus.datastore.mybatis.MyBatisDataStore#prepare
  * @see org.sonatype.nexus.datastore.mybatis.handlers.EncryptedStringTypeHandler
  * @see org.sonatype.nexus.datastore.mybatis.MyBatisCipher
@@ -20,20 +48,83 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * @see org.sonatype.nexus.crypto.internal.PbeCipherFactory
  * @see org.sonatype.nexus.crypto.internal.PbeCipherFactory.PbeCipher
  */
+@Singleton
 @Named
-public class EncryptedString {
+@ManagedLifecycle(phase = STORAGE) // Stopped after ApiKeySanitizer
+public class EncryptedString extends StateGuardLifecycleSupport {
 
     public static final Base64Variant BASE_64 = Base64Variants.getDefaultVariant();
 
+    // Smaller batches are processed in the calling thread
+    private static final int BULK_THRESHOLD = 64;
+
     // Hidden bean org.sonatype.nexus.datastore.mybatis.MyBatisCipher
     private final PbeCipher databaseCipher;
 
+    private final LegacyCipherFactory pbeCipherFactory;
+    private final String password;
+    private final String salt;
+    private final String iv;
+
+    private final int parallelism;
+
+    private volatile ForkJoinPool bulkPool;
+
+    private volatile boolean stopped;
+
+    // Idle ciphers of single value operations
+    private final BlockingQueue<PbeCipher> cipherPool;
+
+    // Number of created pooled ciphers
+    private final AtomicInteger cipherPoolCreated = new AtomicInteger();
+
+    // Cipher and Base64 buffer of bulk pool worker, released with worker threads when the pool is shut down
+    private final ThreadLocal<Worker> bulkWorker = ThreadLocal.withInitial(() -> new Worker(newCipher()));
+
+    private static final class Worker {
+        private final PbeCipher cipher;
+        private final ByteArrayBuilder buffer = new ByteArrayBuilder();
+
+        private Worker(PbeCipher cipher) {
+            this.cipher = cipher;
+        }
+
+        private byte[] decodeBase64(final String value) {
+            try {
+                BASE_64.decode(value, buffer);
+                return buffer.toByteArray();
+            } finally {
+                buffer.reset();
+            }
+        }
+    }
+
     @Inject
     public EncryptedString(final LegacyCipherFactory pbeCipherFactory,
             @Named("${nexus.mybatis.cipher.password:-changeme}") final String password,
             @Named("${nexus.mybatis.cipher.salt:-changeme}") final String salt,
-            @Named("${nexus.mybatis.cipher.iv:-0123456789ABCDEF}") final String iv) throws Exception {
+            @Named("${nexus.mybatis.cipher.iv:-0123456789ABCDEF}") final String iv,
+            @Named("${nexus.sso.cipher.parallelism:-0}") final int parallelism) throws Exception {
+        this.pbeCipherFactory = pbeCipherFactory;
+        this.password = password;
+        this.salt = salt;
+        this.iv = iv;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
         this.databaseCipher = pbeCipherFactory.create(password, salt, iv);
+        this.cipherPool = new ArrayBlockingQueue<>(this.parallelism);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        ForkJoinPool pool;
+        synchronized (this) {
+            stopped = true;
+            pool = bulkPool;
+            bulkPool = null;
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
     }
 
     public final PbeCipher cipher() {
@@ -41,17 +132,139 @@ public class EncryptedString {
     }
 
     /**
-     * Encrypt string using database cipher + Base64.
+     * Encrypt string using database cipher + Base64, {@code null} value stays {@code null}.
      */
     public final String encrypt(final String value) {
-        return BASE_64.encode(cipher().encrypt(value.getBytes(UTF_8)));
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        PbeCipher cipher = borrowCipher();
+        try {
+            return BASE_64.encode(cipher.encrypt(bytes));
+        } finally {
+            releaseCipher(cipher);
+        }
     }
 
     /**
      * Decrypt string using Base64 + database cipher.
      */
     public final String decrypt(final String value) {
-        return value != null ? new String(cipher().decrypt(BASE_64.decode(value)), UTF_8) : null;
+        if (value == null) {
+            return null;
+        }
+        byte[] bytes = BASE_64.decode(value);
+        PbeCipher cipher = borrowCipher();
+        try {
+            return new String(cipher.decrypt(bytes), UTF_8);
+        } finally {
+            releaseCipher(cipher);
+        }
+    }
+
+    /**
+     * Encrypt strings in parallel, results are in input order, {@code null} values stay {@code null}.
+     * 
+     * @since 3.75.1-02
+     */
+    public List<String> encryptAll(final Collection<String> values) {
+        return bulk(values, (w, v) -> BASE_64.encode(w.cipher.encrypt(v.getBytes(UTF_8))));
+    }
+
+    /**
+     * Decrypt strings in parallel, results are in input order, {@code null} values stay {@code null}.
+     * 
+     * @since 3.75.1-02
+     */
+    public List<String> decryptAll(final Collection<String> values) {
+        return bulk(values, (w, v) -> new String(w.cipher.decrypt(w.decodeBase64(v)), UTF_8));
+    }
+
+    /**
+     * @param function Applied to non-null values, {@code null} values are passed through
+     */
+    private List<String> bulk(final Collection<String> values, final BiFunction<Worker, String, String> function) {
+        ForkJoinPool pool = values.size() < BULK_THRESHOLD || parallelism == 1 ? null : bulkPool();
+        if (pool != null) {
+            try {
+                // Parallel stream of a task runs in the pool of this task
+                return pool.submit(() -> values.parallelStream() //
+                        .map(v -> v != null ? function.apply(bulkWorker.get(), v) : null) //
+                        .collect(Collectors.toList())) //
+                        .join();
+            } catch (RejectedExecutionException e) {
+                // Pool was shut down concurrently
+            }
+        }
+        PbeCipher cipher = borrowCipher();
+        try {
+            Worker worker = new Worker(cipher);
+            List<String> result = new ArrayList<>(values.size());
+            for (String value : values) {
+                result.add(value != null ? function.apply(worker, value) : null);
+            }
+            return result;
+        } finally {
+            releaseCipher(cipher);
+        }
+    }
+
+    private PbeCipher borrowCipher() {
+        PbeCipher cipher = cipherPool.poll();
+        if (cipher != null) {
+            return cipher;
+        }
+        int created = cipherPoolCreated.get();
+        while (created < parallelism) {
+            if (cipherPoolCreated.compareAndSet(created, created + 1)) {
+                try {
+                    return newCipher();
+                } catch (IllegalStateException e) {
+                    cipherPoolCreated.decrementAndGet();
+                    throw e;
+                }
+            }
+            created = cipherPoolCreated.get();
+        }
+        try {
+            return cipherPool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for database cipher", e);
+        }
+    }
+
+    private void releaseCipher(final PbeCipher cipher) {
+        cipherPool.offer(cipher);
+    }
+
+    public int getCipherPoolSize() {
+        return cipherPoolCreated.get();
+    }
+
+    private PbeCipher newCipher() {
+        try {
+            return pbeCipherFactory.create(password, salt, iv);
+        } catch (Exception e) {
+            throw new IllegalStateException("Error create database cipher", e);
+        }
+    }
+
+    /**
+     * @return {@code null} if the component is stopped
+     */
+    private ForkJoinPool bulkPool() {
+        ForkJoinPool pool = bulkPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = bulkPool;
+                if (pool == null && !stopped) {
+                    bulkPool = pool = new ForkJoinPool(parallelism);
+                }
+            }
+        }
+        return pool;
     }
 
 }
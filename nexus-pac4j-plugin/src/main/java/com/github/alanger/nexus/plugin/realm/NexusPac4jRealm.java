@@ -86,14 +86,16 @@ public class NexusPac4jRealm extends Pac4jRealmName {
 
     private final SecurityHelper securityHelper;
     protected final UserPrincipalsHelper principalsHelper;
+    protected final UserStatusCache userStatusCache;
 
     @Inject
     public NexusPac4jRealm(final SecurityHelper securityHelper, final UserPrincipalsHelper principalsHelper,
-            final SecurityConfiguration securityConfiguration) {
+            final SecurityConfiguration securityConfiguration, final UserStatusCache userStatusCache) {
 
         this.securityHelper = Preconditions.checkNotNull(securityHelper);
         this.principalsHelper = Preconditions.checkNotNull(principalsHelper);
         this.securityConfiguration = Preconditions.checkNotNull(securityConfiguration);
+        this.userStatusCache = Preconditions.checkNotNull(userStatusCache);
 
         setName(NAME);
 
@@ -289,6 +291,7 @@ public class NexusPac4jRealm extends Pac4jRealmName {
         } else {
             securityConfiguration.updateUser(user, roleSet);
         }
+        userStatusCache.invalidate(id);
 
         // Set roles
         CUserRoleMapping curRoleMapping = securityConfiguration.getUserRoleMapping(id, source);
@@ -1,5 +1,11 @@
 package com.github.alanger.nexus.plugin.realm;
 
+import java.nio.CharBuffer;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -8,18 +14,26 @@ import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
 import org.apache.shiro.authc.DisabledAccountException;
 import org.apache.shiro.authc.ExpiredCredentialsException;
-import org.apache.shiro.authc.SimpleAuthenticationInfo;
 import org.apache.shiro.authc.UnknownAccountException;
 import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.util.Destroyable;
 import org.eclipse.sisu.Description;
 import org.sonatype.nexus.security.SecurityHelper;
 import org.sonatype.nexus.security.UserPrincipalsHelper;
 import org.sonatype.nexus.security.authc.NexusApiKeyAuthenticationToken;
-import org.sonatype.nexus.security.authc.apikey.ApiKey;
 import org.sonatype.nexus.security.config.SecurityConfiguration;
 import org.sonatype.nexus.security.user.UserNotFoundException;
+import com.github.alanger.nexus.plugin.apikey.ApiKeySnapshot;
 import com.github.alanger.nexus.plugin.apikey.ApiTokenService;
+import com.github.alanger.nexus.plugin.apikey.StaleApiKeyCleaner;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * User Token realm. Each user can set a personal token that can be used instead of a password.
@@ -32,23 +46,51 @@ import com.google.common.base.Preconditions;
 @Singleton
 @Named(NexusTokenRealm.NAME)
 @Description("SSO Token Realm")
-public class NexusTokenRealm extends NexusPac4jRealm {
+public class NexusTokenRealm extends NexusPac4jRealm implements Destroyable {
 
     public static final String NAME = "tokenRealm";
     public static final String DOMAIN = ApiTokenService.DOMAIN;
 
     private final ApiTokenService apiTokenService;
 
+    private final StaleApiKeyCleaner staleApiKeyCleaner;
+
     private int expirationDays = 365; // One year
 
     private boolean domainAsLogin = false;
 
+    private long negativeCacheSize = 10000;
+
+    private long negativeCacheTtl = 60; // Seconds
+
+    // Hash of (username, credential) for which no API token was found
+    private volatile Cache<HashCode, Boolean> negativeCache = buildNegativeCache();
+
+    // Registered in ApiTokenService, same instance is required to remove it
+    private final Runnable negativeCacheInvalidator = this::invalidateNegativeCache;
+
+    private long expirationSweepInterval = 300; // Seconds
+
+    // Created when sweep is scheduled, shut down when sweep is disabled or realm is destroyed
+    private ScheduledExecutorService expirationSweeper;
+
+    private ScheduledFuture<?> expirationSweep;
+
+    private volatile boolean initialized = false;
+
+    private volatile boolean destroyed = false;
+
     @Inject
     public NexusTokenRealm(final SecurityHelper securityHelper, final UserPrincipalsHelper principalsHelper,
-            final SecurityConfiguration securityConfiguration, final ApiTokenService apiTokenService) {
-        super(securityHelper, principalsHelper, securityConfiguration);
+            final SecurityConfiguration securityConfiguration, final UserStatusCache userStatusCache,
+            final ApiTokenService apiTokenService, final StaleApiKeyCleaner staleApiKeyCleaner) {
+        super(securityHelper, principalsHelper, securityConfiguration, userStatusCache);
 
         this.apiTokenService = Preconditions.checkNotNull(apiTokenService);
+        this.staleApiKeyCleaner = Preconditions.checkNotNull(staleApiKeyCleaner);
+
+        // New token may have been rejected before it was created, whatever the caller of ApiTokenService is
+        apiTokenService.addCreateListener(negativeCacheInvalidator);
 
         setName(NAME);
 
@@ -67,6 +109,15 @@ public class NexusTokenRealm extends NexusPac4jRealm {
                 getName(), isAuthenticationCachingEnabled(), isAuthorizationCachingEnabled(), getPrincipalNameAttribute(), getCommonRole(),
                 getCommonPermission(), getPermissionWhiteList(), getPermissionBlackList(), getRoleWhiteList(), getRoleBlackList(),
                 getExpirationDays());
+        logger.trace("onInit negativeCacheSize: {}, negativeCacheTtl: {}, expirationSweepInterval: {}, userStatusCacheTtl: {}",
+                getNegativeCacheSize(), getNegativeCacheTtl(), getExpirationSweepInterval(), getUserStatusCacheTtl());
+    }
+
+    @Override
+    protected void onInit() {
+        super.onInit();
+        initialized = true;
+        scheduleExpirationSweep();
     }
 
     @Override
@@ -77,25 +128,38 @@ public class NexusTokenRealm extends NexusPac4jRealm {
             logger.debug("Looking up API key for: {}", token);
 
             UsernamePasswordToken t = toUsernamePasswordToken(token);
-            ApiKey key = apiTokenService.findApiKey(t, domainAsLogin).orElse(null);
+            HashCode missKey = negativeCacheKey(t);
+            if (missKey != null && negativeCache.getIfPresent(missKey) != null) {
+                logger.debug("API key for {} is known to be missing, skip lookup", t.getUsername());
+                throw new AuthenticationException("Token " + token + " is not applicable");
+            }
+
+            ApiKeySnapshot key = apiTokenService.findApiKeySnapshot(t, domainAsLogin).orElse(null);
+            // Broken tokens are treated as missing until ApiKeySanitizer completes, do not remember them
+            if (key == null && missKey != null && apiTokenService.isSafe()) {
+                negativeCache.put(missKey, Boolean.TRUE);
+            }
 
             if (key != null) {
                 logger.debug("Found API key principal: {}, realms: {}", key.getPrimaryPrincipal(), key.getPrincipals().getRealmNames());
 
-                if (ApiTokenService.isExpired(key, expirationDays)) {
+                long expirationTimeStamp = ApiTokenService.getExpirationTimeStamp(key.getCreated(), expirationDays);
+                if (ApiTokenService.isExpired(expirationTimeStamp)) {
                     logger.debug("API token for {} ({}) is expired, created: {}, expirationDays: {}", t.getUsername(),
-                            key.getPrimaryPrincipal(), key.getCreated(), expirationDays);
+                            key.getPrimaryPrincipal(), Instant.ofEpochMilli(key.getCreated()), expirationDays);
                     throw new ExpiredCredentialsException("Account " + t.getUsername() + " is expired");
                 }
                 try {
-                    if (this.principalsHelper.getUserStatus(key.getPrincipals()).isActive()) {
+                    if (this.userStatusCache.getUserStatus(this.principalsHelper, key.getPrincipals()).isActive()) {
                         logger.debug("API token has been authenticated for {} ({})", t.getUsername(), key.getPrimaryPrincipal());
-                        return new SimpleAuthenticationInfo(key.getPrimaryPrincipal(), key.getApiKey(), getName());
+                        // Key was found by this token, so the token is the credential
+                        return new TokenAuthenticationInfo(key.getPrimaryPrincipal(), t.getPassword(), getName(),
+                                expirationTimeStamp);
                     }
                     throw new DisabledAccountException("Account " + t.getUsername() + " is disabled");
                 } catch (UserNotFoundException e) {
                     logger.debug("User {} ({}) not found, removing stale API token", t.getUsername(), key.getPrimaryPrincipal());
-                    apiTokenService.deleteApiKey(DOMAIN, key.getPrincipals());
+                    staleApiKeyCleaner.enqueue(DOMAIN, key.getPrincipals());
                     throw new UnknownAccountException("Account " + t.getUsername() + " not found", e);
                 }
             }
@@ -104,6 +168,79 @@ public class NexusTokenRealm extends NexusPac4jRealm {
         throw new AuthenticationException("Token " + token + " is not applicable");
     }
 
+    /**
+     * Token may expire while its authentication info is still in the cache.
+     */
+    @Override
+    protected void assertCredentialsMatch(AuthenticationToken token, AuthenticationInfo info) throws AuthenticationException {
+        if (info instanceof TokenAuthenticationInfo && ((TokenAuthenticationInfo) info).isExpired()) {
+            org.apache.shiro.cache.Cache<Object, AuthenticationInfo> cache = getAuthenticationCache();
+            if (cache != null) {
+                cache.remove(getAuthenticationCacheKey(token));
+            }
+            logger.debug("API token for {} is expired", token.getPrincipal());
+            throw new ExpiredCredentialsException("Account " + token.getPrincipal() + " is expired");
+        }
+        super.assertCredentialsMatch(token, info);
+    }
+
+    /**
+     * Evict expired tokens from the authentication cache.
+     */
+    private void sweepExpired() {
+        org.apache.shiro.cache.Cache<Object, AuthenticationInfo> cache = getAuthenticationCache();
+        if (cache == null) {
+            return;
+        }
+        try {
+            int count = 0;
+            for (Object key : cache.keys()) {
+                AuthenticationInfo info = cache.get(key);
+                if (info instanceof TokenAuthenticationInfo && ((TokenAuthenticationInfo) info).isExpired()) {
+                    cache.remove(key);
+                    count++;
+                }
+            }
+            logger.trace("Expired API tokens evicted from cache: {}", count);
+        } catch (Exception e) {
+            logger.debug("Error evict expired API tokens from cache", e);
+        }
+    }
+
+    private synchronized void scheduleExpirationSweep() {
+        if (expirationSweep != null) {
+            expirationSweep.cancel(false);
+            expirationSweep = null;
+        }
+        if (!destroyed && expirationSweepInterval > 0 && ApiTokenService.isExpirationEnabled(expirationDays)) {
+            if (expirationSweeper == null) {
+                expirationSweeper = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("sso-token-expiration-sweeper").setDaemon(true).build());
+            }
+            expirationSweep = expirationSweeper.scheduleWithFixedDelay(this::sweepExpired, expirationSweepInterval,
+                    expirationSweepInterval, TimeUnit.SECONDS);
+        } else if (expirationSweeper != null) {
+            expirationSweeper.shutdownNow();
+            expirationSweeper = null;
+        }
+    }
+
+    /**
+     * Stop eviction of expired tokens and notifications of token creation, called by security manager on destroy.
+     * 
+     * @since 3.75.1-02
+     */
+    @Override
+    public synchronized void destroy() {
+        destroyed = true;
+        apiTokenService.removeCreateListener(negativeCacheInvalidator);
+        if (expirationSweeper != null) {
+            expirationSweeper.shutdownNow();
+            expirationSweeper = null;
+            expirationSweep = null;
+        }
+    }
+
     /**
      * Token can be {@link org.apache.shiro.authc.UsernamePasswordToken}
      * or {@link org.sonatype.nexus.security.authc.NexusApiKeyAuthenticationToken}.
@@ -119,6 +256,45 @@ public class NexusTokenRealm extends NexusPac4jRealm {
         }
     }
 
+    /**
+     * Key of negative cache, password is never stored as is.
+     */
+    private static HashCode negativeCacheKey(UsernamePasswordToken token) {
+        if (token.getUsername() == null || token.getPassword() == null) {
+            return null;
+        }
+        return Hashing.sha256().newHasher() //
+                .putString(token.getUsername(), UTF_8) //
+                .putByte((byte) 0) //
+                .putString(CharBuffer.wrap(token.getPassword()), UTF_8) //
+                .hash();
+    }
+
+    private Cache<HashCode, Boolean> buildNegativeCache() {
+        return CacheBuilder.newBuilder() //
+                .maximumSize(Math.max(0, negativeCacheSize)) //
+                .expireAfterWrite(Math.max(0, negativeCacheTtl), TimeUnit.SECONDS) //
+                .recordStats() //
+                .build();
+    }
+
+    /**
+     * Forget all failed token lookups, called by {@link ApiTokenService} when a new token is created.
+     * 
+     * @since 3.75.1-02
+     */
+    public void invalidateNegativeCache() {
+        negativeCache.invalidateAll();
+    }
+
+    public long getNegativeCacheHitCount() {
+        return negativeCache.stats().hitCount();
+    }
+
+    public long getNegativeCacheMissCount() {
+        return negativeCache.stats().missCount();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public boolean supports(AuthenticationToken token) {
@@ -147,6 +323,31 @@ public class NexusTokenRealm extends NexusPac4jRealm {
      */
     public void setExpirationDays(int expirationDays) {
         this.expirationDays = expirationDays;
+        if (initialized) {
+            scheduleExpirationSweep();
+        }
+    }
+
+    public long getExpirationSweepInterval() {
+        return expirationSweepInterval;
+    }
+
+    /**
+     * Interval in seconds of eviction expired tokens from the authentication cache, by default it is 300 seconds.
+     * Set to '0' for disable, expired tokens are rejected anyway. Example of shiro.ini:
+     * 
+     * <pre>
+     * tokenRealm.expirationSweepInterval = 300
+     * </pre>
+     * 
+     * @since 3.75.1-02
+     * @param expirationSweepInterval Interval in seconds
+     */
+    public void setExpirationSweepInterval(long expirationSweepInterval) {
+        this.expirationSweepInterval = expirationSweepInterval;
+        if (initialized) {
+            scheduleExpirationSweep();
+        }
     }
 
     public boolean isDomainAsLogin() {
@@ -171,4 +372,64 @@ public class NexusTokenRealm extends NexusPac4jRealm {
         this.domainAsLogin = domainAsLogin;
     }
 
+    public long getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    /**
+     * Maximum number of failed token lookups (username and password pairs that are not tokens) to remember,
+     * by default it is 10000. Set to '0' for disable. Example of shiro.ini:
+     * 
+     * <pre>
+     * tokenRealm.negativeCacheSize = 10000
+     * </pre>
+     * 
+     * @since 3.75.1-02
+     * @param negativeCacheSize Maximum number of entries
+     */
+    public void setNegativeCacheSize(long negativeCacheSize) {
+        this.negativeCacheSize = negativeCacheSize;
+        this.negativeCache = buildNegativeCache();
+    }
+
+    public long getNegativeCacheTtl() {
+        return negativeCacheTtl;
+    }
+
+    /**
+     * Time in seconds during which a failed token lookup is not repeated, by default it is 60 seconds.
+     * Example of shiro.ini:
+     * 
+     * <pre>
+     * tokenRealm.negativeCacheTtl = 60
+     * </pre>
+     * 
+     * @since 3.75.1-02
+     * @param negativeCacheTtl Time to live in seconds
+     */
+    public void setNegativeCacheTtl(long negativeCacheTtl) {
+        this.negativeCacheTtl = negativeCacheTtl;
+        this.negativeCache = buildNegativeCache();
+    }
+
+    public long getUserStatusCacheTtl() {
+        return userStatusCache.getTtl();
+    }
+
+    /**
+     * Time in seconds during which the user status (active, disabled) is not reloaded, by default it is 30 seconds.
+     * Disabling a user through Nexus is applied immediately, any other status change takes effect
+     * no later than this time. Set to '0' for disable. Example of shiro.ini:
+     * 
+     * <pre>
+     * tokenRealm.userStatusCacheTtl = 30
+     * </pre>
+     * 
+     * @since 3.75.1-02
+     * @param userStatusCacheTtl Time to live in seconds
+     */
+    public void setUserStatusCacheTtl(long userStatusCacheTtl) {
+        userStatusCache.setTtl(userStatusCacheTtl);
+    }
+
 }
@@ -36,12 +36,15 @@ public class Pac4jUserManager extends AbstractUserManager implements RoleMapping
 
     private final RoleMappingUserManager defaultUserManager;
 
+    private final UserStatusCache userStatusCache;
+
     @Inject
     public Pac4jUserManager(final EventManager eventManager, final SecurityConfigurationManager configuration,
-            @Named("default") final RoleMappingUserManager defaultUserManager) {
+            @Named("default") final RoleMappingUserManager defaultUserManager, final UserStatusCache userStatusCache) {
         this.eventManager = checkNotNull(eventManager);
         this.configuration = configuration;
         this.defaultUserManager = checkNotNull(defaultUserManager);
+        this.userStatusCache = checkNotNull(userStatusCache);
     }
 
     //-- Utils --//
@@ -122,12 +125,20 @@ public class Pac4jUserManager extends AbstractUserManager implements RoleMapping
 
     @Override
     public User updateUser(User user) throws UserNotFoundException {
-        return defaultUserManager.updateUser(user);
+        try {
+            return defaultUserManager.updateUser(user);
+        } finally {
+            userStatusCache.invalidate(user.getUserId());
+        }
     }
 
     @Override
     public void deleteUser(String userId) throws UserNotFoundException {
-        defaultUserManager.deleteUser(userId);
+        try {
+            defaultUserManager.deleteUser(userId);
+        } finally {
+            userStatusCache.invalidate(userId);
+        }
     }
 
     @Override
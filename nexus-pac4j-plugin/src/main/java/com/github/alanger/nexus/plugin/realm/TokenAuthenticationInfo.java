@@ -0,0 +1,32 @@
+package com.github.alanger.nexus.plugin.realm;
+
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import com.github.alanger.nexus.plugin.apikey.ApiTokenService;
+
+/**
+ * Authentication info of API token with absolute expiration deadline,
+ * checked each time the info is taken from the authentication cache.
+ * 
+ * @since 3.75.1-02
+ * @see NexusTokenRealm#assertCredentialsMatch
+ */
+public class TokenAuthenticationInfo extends SimpleAuthenticationInfo {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long expirationTimeStamp;
+
+    public TokenAuthenticationInfo(Object principal, Object credentials, String realmName, long expirationTimeStamp) {
+        super(principal, credentials, realmName);
+        this.expirationTimeStamp = expirationTimeStamp;
+    }
+
+    public long getExpirationTimeStamp() {
+        return expirationTimeStamp;
+    }
+
+    public boolean isExpired() {
+        return ApiTokenService.isExpired(expirationTimeStamp);
+    }
+
+}
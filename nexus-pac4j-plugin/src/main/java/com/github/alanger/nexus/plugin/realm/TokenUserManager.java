@@ -25,8 +25,9 @@ public class TokenUserManager extends Pac4jUserManager {
     public static final String SOURCE = "pac4jToken";
 
     @Inject
-	public TokenUserManager(EventManager eventManager, SecurityConfigurationManager configuration, RoleMappingUserManager defaultUserManager) {
-		super(eventManager, configuration, defaultUserManager);
+	public TokenUserManager(EventManager eventManager, SecurityConfigurationManager configuration, RoleMappingUserManager defaultUserManager,
+			UserStatusCache userStatusCache) {
+		super(eventManager, configuration, defaultUserManager, userStatusCache);
 	}
     
     //-- org.sonatype.nexus.security.user.UserManager --//
@@ -0,0 +1,146 @@
+package com.github.alanger.nexus.plugin.realm;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.security.UserPrincipalsHelper;
+import org.sonatype.nexus.security.user.UserDeletedEvent;
+import org.sonatype.nexus.security.user.UserNotFoundException;
+import org.sonatype.nexus.security.user.UserStatus;
+import org.sonatype.nexus.security.user.UserUpdatedEvent;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Short-lived cache of user status for token authentication, keyed by realm and primary principal,
+ * so that users with the same id from different realms do not share the status.
+ * Entries of all realms are removed when the user is updated or deleted, a status changed in any other way
+ * takes effect after the time to live. Status loaded while the cache was invalidated is returned, but not cached.
+ * 
+ * @since 3.75.1-02
+ * @see NexusTokenRealm#setUserStatusCacheTtl(long)
+ */
+@Singleton
+@Named
+public class UserStatusCache extends ComponentSupport implements EventAware {
+
+    private static final class Key {
+        private final String realm;
+        private final String userId;
+
+        private Key(String realm, String userId) {
+            this.realm = realm;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(realm, other.realm) && userId.equals(other.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(realm) + userId.hashCode();
+        }
+    }
+
+    private long ttl = 30; // Seconds
+
+    private volatile Cache<Key, UserStatus> cache = build(ttl);
+
+    // Incremented on each invalidation, status loaded before it is not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    // Guards check of generation with put, and change of generation with removal
+    private final Object lock = new Object();
+
+    private static Cache<Key, UserStatus> build(long ttl) {
+        return CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(Math.max(0, ttl), TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Status of user from cache or {@link UserPrincipalsHelper#getUserStatus(PrincipalCollection)}.
+     */
+    public UserStatus getUserStatus(UserPrincipalsHelper principalsHelper, PrincipalCollection principals) throws UserNotFoundException {
+        Object primary = principals.getPrimaryPrincipal();
+        Key key = new Key(realmName(principals, primary), String.valueOf(primary));
+        Cache<Key, UserStatus> c = this.cache;
+        UserStatus status = c.getIfPresent(key);
+        if (status == null) {
+            long loaded = generation.get();
+            status = principalsHelper.getUserStatus(principals);
+            synchronized (lock) {
+                if (loaded == generation.get()) {
+                    c.put(key, status);
+                }
+            }
+        }
+        return status;
+    }
+
+    // Realm of primary principal
+    private static String realmName(PrincipalCollection principals, Object primary) {
+        for (String realm : principals.getRealmNames()) {
+            if (principals.fromRealm(realm).contains(primary)) {
+                return realm;
+            }
+        }
+        return null;
+    }
+
+    public void invalidate(String userId) {
+        if (userId != null) {
+            log.trace("Invalidate user status: {}", userId);
+            synchronized (lock) {
+                generation.incrementAndGet();
+                cache.asMap().keySet().removeIf(key -> key.userId.equals(userId));
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (lock) {
+            generation.incrementAndGet();
+            cache.invalidateAll();
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final UserUpdatedEvent event) {
+        invalidate(event.getUser().getUserId());
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final UserDeletedEvent event) {
+        invalidate(event.getUser().getUserId());
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @param ttl Time to live in seconds, '0' for disable
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+        this.cache = build(ttl);
+    }
+
+}
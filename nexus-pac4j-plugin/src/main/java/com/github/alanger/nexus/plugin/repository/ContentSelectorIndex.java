@@ -0,0 +1,223 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.manager.RepositoryCreatedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryDeletedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryUpdatedEvent;
+import org.sonatype.nexus.repository.security.RepositoryContentSelectorPermission;
+import org.sonatype.nexus.security.SecurityHelper;
+import org.sonatype.nexus.security.authz.AuthorizationConfigurationChanged;
+import org.sonatype.nexus.security.user.UserDeletedEvent;
+import org.sonatype.nexus.security.user.UserUpdatedEvent;
+import org.sonatype.nexus.selector.SelectorConfiguration;
+import org.sonatype.nexus.selector.SelectorConfigurationEvent;
+import org.sonatype.nexus.selector.SelectorManager;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Index of content selector permissions by repository and action, with short-lived cache of checks by subject.
+ * Checks are cached by all principals of the subject, so that users with the same id from different realms
+ * do not share the result. Permissions are built once per repository and action, instead of on each check. Both are invalidated
+ * when a content selector, role, privilege, user or repository is changed.
+ * 
+ * <pre>
+ * nexus.sso.selector.check.ttl=30
+ * </pre>
+ * 
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.bootstrap.QuotaFilter#userCanInRepository(Repository)
+ */
+@Singleton
+@Named
+public class ContentSelectorIndex extends ComponentSupport implements EventAware {
+
+    private static final class Key {
+        private final PrincipalCollection principals;
+        private final String repositoryName;
+        private final String action;
+
+        private Key(PrincipalCollection principals, String repositoryName, String action) {
+            this.principals = principals;
+            this.repositoryName = repositoryName;
+            this.action = action;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return principals.equals(other.principals) && repositoryName.equals(other.repositoryName)
+                    && Objects.equals(action, other.action);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(principals, repositoryName, action);
+        }
+    }
+
+    private final SelectorManager selectorManager;
+
+    private final SecurityHelper securityHelper;
+
+    // Null until first use or after invalidation
+    private volatile List<SelectorConfiguration> selectors;
+
+    // Repository name + action -> content selector permissions
+    private final Map<String, Permission[]> permissions = new ConcurrentHashMap<>();
+
+    // Incremented on each invalidation, prevents caching of results that raced with the change
+    private final AtomicLong generation = new AtomicLong();
+
+    private final long ttl; // Seconds
+
+    // Principals + repository name + action -> permitted
+    private final Cache<Key, Boolean> checks;
+
+    /**
+     * @param ttl Time to live of cached checks in seconds, '0' for disable
+     */
+    @Inject
+    public ContentSelectorIndex(final SelectorManager selectorManager, final SecurityHelper securityHelper //
+            , @Named("${nexus.sso.selector.check.ttl:-30}") final long ttl) {
+        this.selectorManager = Preconditions.checkNotNull(selectorManager);
+        this.securityHelper = Preconditions.checkNotNull(securityHelper);
+        this.ttl = ttl;
+        this.checks = CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(Math.max(0, ttl), TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Same as check of {@link RepositoryContentSelectorPermission} of each content selector.
+     * 
+     * @see org.sonatype.nexus.repository.security.RepositoryPermissionChecker
+     */
+    public boolean anyPermitted(Subject subject, Repository repository, String action) {
+        PrincipalCollection principals = subject != null ? subject.getPrincipals() : null;
+        if (principals == null || principals.isEmpty()) {
+            return securityHelper.anyPermitted(subject, permissions(repository, action));
+        }
+
+        Key key = new Key(principals, repository.getName(), action);
+        Boolean permitted = checks.getIfPresent(key);
+        if (permitted == null) {
+            long gen = generation.get();
+            permitted = securityHelper.anyPermitted(subject, permissions(repository, action));
+            if (gen == generation.get()) {
+                checks.put(key, permitted);
+            }
+        }
+        return permitted;
+    }
+
+    public Permission[] permissions(Repository repository, String action) {
+        String key = repository.getName() + "\u0000" + action;
+        Permission[] result = permissions.get(key);
+        if (result == null) {
+            long gen = generation.get();
+            result = selectors().stream() //
+                    .map(selector -> new RepositoryContentSelectorPermission(selector, repository, singletonList(action))) //
+                    .toArray(Permission[]::new);
+            if (gen == generation.get()) {
+                permissions.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    private List<SelectorConfiguration> selectors() {
+        List<SelectorConfiguration> s = this.selectors;
+        if (s == null) {
+            long gen = generation.get();
+            s = Collections.unmodifiableList(selectorManager.browse());
+            if (gen == generation.get()) {
+                this.selectors = s;
+            }
+        }
+        return s;
+    }
+
+    public void invalidate() {
+        log.trace("Invalidate content selector index");
+        generation.incrementAndGet();
+        this.selectors = null;
+        this.permissions.clear();
+        this.checks.invalidateAll();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final SelectorConfigurationEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final AuthorizationConfigurationChanged event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final UserUpdatedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final UserDeletedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryCreatedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryUpdatedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryDeletedEvent event) {
+        invalidate();
+    }
+
+    public long getCheckCacheSize() {
+        return checks.size();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+}
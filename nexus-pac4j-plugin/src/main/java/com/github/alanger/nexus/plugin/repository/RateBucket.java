@@ -0,0 +1,92 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of push rate limit, generic cell rate algorithm (GCRA).
+ * Theoretical arrival time is updated by CAS, so the bucket is lock-free.
+ * 
+ * <p>
+ * Bucket that was not used for {@link #refillNanos(double, int)} is full again, so it may be forgotten
+ * and replaced by a new one.
+ * 
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.bootstrap.RateLimitFilter
+ */
+public final class RateBucket {
+
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+    private final AtomicLong allowed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param now Current time in nanoseconds, {@link System#nanoTime()}
+     * @param interval Nanoseconds between requests, see {@link #interval(double)}
+     * @param tolerance Nanoseconds of burst, see {@link #tolerance(double, int)}
+     * @return '0' if allowed, otherwise nanoseconds to wait
+     */
+    public long tryAcquire(long now, long interval, long tolerance) {
+        while (true) {
+            long current = tat.get();
+            long start = current == Long.MIN_VALUE ? now : current;
+            long allowAt = start - tolerance;
+            if (now < allowAt) {
+                rejected.incrementAndGet();
+                return allowAt - now;
+            }
+            if (tat.compareAndSet(current, Math.max(start, now) + interval)) {
+                allowed.incrementAndGet();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Return the last acquired request, when it was rejected by other limit.
+     */
+    public void refund(long interval) {
+        tat.addAndGet(-interval);
+        allowed.decrementAndGet();
+    }
+
+    public long getAllowed() {
+        return allowed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @param rate Requests per second
+     * @return nanoseconds between requests
+     */
+    public static long interval(double rate) {
+        return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * @param rate Requests per second
+     * @param burst Requests allowed at once
+     * @return nanoseconds of burst
+     */
+    public static long tolerance(double rate, int burst) {
+        return interval(rate) * Math.max(0, burst - 1);
+    }
+
+    /**
+     * @return nanoseconds after which unused bucket is full
+     */
+    public static long refillNanos(double rate, int burst) {
+        return interval(rate) * Math.max(1, burst);
+    }
+
+    @Override
+    public String toString() {
+        return "{allowed=" + allowed.get() + ", rejected=" + rejected.get() + "}";
+    }
+
+}
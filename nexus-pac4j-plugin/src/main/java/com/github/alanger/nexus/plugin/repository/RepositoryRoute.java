@@ -0,0 +1,78 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.repository.Repository;
+
+/**
+ * Immutable push target of repository: blob store and its quota configuration.
+ * 
+ * @since 3.75.1-02
+ * @see RepositoryRoutingTable
+ */
+public final class RepositoryRoute {
+
+    private final Repository repository;
+
+    private final String blobStoreName;
+
+    private final BlobStore blobStore;
+
+    private final String quotaType;
+
+    private final long quotaLimitBytes;
+
+    public RepositoryRoute(Repository repository, String blobStoreName, BlobStore blobStore, String quotaType, long quotaLimitBytes) {
+        this.repository = repository;
+        this.blobStoreName = blobStoreName;
+        this.blobStore = blobStore;
+        this.quotaType = quotaType;
+        this.quotaLimitBytes = quotaLimitBytes;
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    public String getRepositoryName() {
+        return repository.getName();
+    }
+
+    /**
+     * @return name of blob store or {@code null} if repository has no storage
+     */
+    public String getBlobStoreName() {
+        return blobStoreName;
+    }
+
+    /**
+     * @return blob store or {@code null} if repository has no storage or blob store is missing
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * @return {@code spaceUsedQuota}, {@code spaceRemainingQuota} or {@code null} if quota is not configured
+     */
+    public String getQuotaType() {
+        return quotaType;
+    }
+
+    /**
+     * @return limit of quota or {@code -1} if quota is not configured
+     */
+    public long getQuotaLimitBytes() {
+        return quotaLimitBytes;
+    }
+
+    public boolean hasQuota() {
+        return quotaType != null && quotaLimitBytes >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{repository=" + getRepositoryName() + ", blobStoreName=" + blobStoreName + ", quotaType="
+                + quotaType + ", quotaLimitBytes=" + quotaLimitBytes + "}";
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+import org.sonatype.nexus.blobstore.api.BlobStoreManager;
+import org.sonatype.nexus.common.collect.NestedAttributesMap;
+import org.sonatype.nexus.common.event.EventAware;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.repository.manager.RepositoryCreatedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryDeletedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryManager;
+import org.sonatype.nexus.repository.manager.RepositoryUpdatedEvent;
+import com.google.common.base.Preconditions;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Immutable table of repository name to {@link RepositoryRoute}, allows to resolve push target by single lookup.
+ * The table is built on first use and rebuilt after repository is created, updated or deleted. Changes of blob store
+ * configuration are picked up after the next repository event or {@link #invalidate()}.
+ * 
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.bootstrap.QuotaFilter
+ */
+@Singleton
+@Named
+public class RepositoryRoutingTable extends ComponentSupport implements EventAware {
+
+    private final RepositoryManager repositoryManager;
+
+    private final BlobStoreManager blobStoreManager;
+
+    // Null until first use or after invalidation
+    private volatile Map<String, RepositoryRoute> routes;
+
+    // Incremented on each invalidation, prevents caching of table that raced with the change
+    private final AtomicLong generation = new AtomicLong();
+
+    @Inject
+    public RepositoryRoutingTable(final RepositoryManager repositoryManager, final BlobStoreManager blobStoreManager) {
+        this.repositoryManager = Preconditions.checkNotNull(repositoryManager);
+        this.blobStoreManager = Preconditions.checkNotNull(blobStoreManager);
+    }
+
+    /**
+     * @return route of repository or {@code null} if repository does not exist
+     */
+    public RepositoryRoute get(String repositoryName) {
+        return repositoryName != null ? routes().get(repositoryName) : null;
+    }
+
+    /**
+     * @return repository or {@code null} if repository does not exist
+     */
+    public Repository getRepository(String repositoryName) {
+        RepositoryRoute route = get(repositoryName);
+        return route != null ? route.getRepository() : null;
+    }
+
+    public Map<String, RepositoryRoute> routes() {
+        Map<String, RepositoryRoute> r = this.routes;
+        return r != null ? r : rebuild();
+    }
+
+    private Map<String, RepositoryRoute> rebuild() {
+        long gen = generation.get();
+        Map<String, RepositoryRoute> r = new HashMap<>();
+        for (Repository repository : repositoryManager.browse()) {
+            try {
+                r.put(repository.getName(), route(repository));
+            } catch (Exception e) {
+                log.warn("Error build route of repository: {}", repository.getName(), e);
+            }
+        }
+        r = Collections.unmodifiableMap(r);
+        synchronized (this) {
+            if (gen == generation.get()) {
+                this.routes = r;
+            }
+        }
+        log.trace("Repository routing table rebuilt, size: {}", r.size());
+        return r;
+    }
+
+    private RepositoryRoute route(Repository repository) {
+        String blobStoreName = repository.getConfiguration().attributes("storage").get("blobStoreName", String.class);
+        BlobStore blobStore = blobStoreName != null ? blobStoreManager.get(blobStoreName) : null;
+
+        String quotaType = null;
+        long quotaLimitBytes = -1;
+        if (blobStore != null) {
+            NestedAttributesMap quota = blobStore.getBlobStoreConfiguration().attributes("blobStoreQuotaConfig");
+            Object limit = quota.get("quotaLimitBytes");
+            if (limit instanceof Number) {
+                quotaType = quota.get("quotaType", String.class);
+                quotaLimitBytes = ((Number) limit).longValue();
+            }
+        }
+        return new RepositoryRoute(repository, blobStoreName, blobStore, quotaType, quotaLimitBytes);
+    }
+
+    public void invalidate() {
+        synchronized (this) {
+            generation.incrementAndGet();
+            this.routes = null;
+        }
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryCreatedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryUpdatedEvent event) {
+        invalidate();
+    }
+
+    @Subscribe
+    @AllowConcurrentEvents
+    public void on(final RepositoryDeletedEvent event) {
+        invalidate();
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.github.alanger.nexus.plugin.rest;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Item of batch API key provisioning request.
+ * 
+ * @since 3.75.1-02
+ */
+public class ApiKeyBatchItemXO {
+
+    @ApiModelProperty("User id")
+    private String principal;
+
+    @ApiModelProperty("Realm of user, detected by user account if empty")
+    private String realm;
+
+    @ApiModelProperty("Domain of API key, NuGetApiKey if empty")
+    private String domain;
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{principal=" + principal + ", realm=" + realm + ", domain=" + domain + "}";
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.alanger.nexus.plugin.rest;
+
+import com.codahale.metrics.annotation.ExceptionMetered;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.validation.constraints.NotNull;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import org.apache.shiro.authz.annotation.RequiresAuthentication;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.rest.NotCacheable;
+import org.sonatype.nexus.rest.Resource;
+import org.sonatype.nexus.rest.WebApplicationMessageException;
+import org.sonatype.nexus.security.config.CUser;
+import org.sonatype.nexus.security.config.SecurityConfiguration;
+import com.github.alanger.nexus.plugin.apikey.ApiTokenService;
+import com.github.alanger.nexus.plugin.realm.NexusPac4jRealm;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Batch API key provisioning for service accounts, creates or rotates keys of the listed users.
+ * Results are streamed as NDJSON, one line per item in request order.
+ * <p>
+ * POST: /service/rest/internal/nuget-api-key/batch
+ * 
+ * <pre>
+ * [{"principal":"ci-user1"},{"principal":"ci-user2","realm":"pac4jRealm","domain":"NuGetApiKey"}]
+ * </pre>
+ * 
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.plugin.apikey.ApiTokenService
+ */
+@Named
+@Singleton
+@Path(ApiKeyBatchResource.RESOURCE_URI)
+public class ApiKeyBatchResource extends ComponentSupport implements Resource {
+
+    public static final String RESOURCE_URI = NugetApiKeyResource.RESOURCE_URI + "/batch";
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    public static final String DEFAULT_REALM = "NexusAuthorizingRealm";
+
+    private final ApiTokenService apiTokenService;
+
+    private final SecurityConfiguration securityConfiguration;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @Inject
+    public ApiKeyBatchResource(final ApiTokenService apiTokenService //
+            , final SecurityConfiguration securityConfiguration) {
+        this.apiTokenService = Preconditions.checkNotNull(apiTokenService);
+        this.securityConfiguration = Preconditions.checkNotNull(securityConfiguration);
+
+        log.trace("ApiKeyBatchResource apiTokenService: {}, securityConfiguration: {}", //
+                apiTokenService, securityConfiguration);
+    }
+
+    @POST
+    @ExceptionMetered
+    @RequiresAuthentication
+    @RequiresPermissions({"nexus:*"})
+    @NotCacheable
+    @Consumes({"application/json"})
+    @Produces({NDJSON})
+    public Response provisionKeys(@NotNull final List<ApiKeyBatchItemXO> items) {
+        if (items == null || items.isEmpty()) {
+            throw new WebApplicationMessageException(Response.Status.BAD_REQUEST, "List of principals is empty");
+        }
+
+        StreamingOutput stream = (OutputStream output) -> {
+            Writer writer = new OutputStreamWriter(output, UTF_8);
+            long start = System.nanoTime();
+            for (ApiKeyBatchItemXO item : items) {
+                objectMapper.writeValue(writer, provisionKey(item));
+                writer.write('\n');
+                writer.flush();
+            }
+            log.debug("Provisioned API keys: {}, time: {} ms", items.size(), millis(start));
+        };
+
+        return Response.ok(stream, NDJSON).build();
+    }
+
+    private ApiKeyBatchResultXO provisionKey(ApiKeyBatchItemXO item) {
+        String domain = item.getDomain() != null && !item.getDomain().isEmpty() ? item.getDomain() : ApiTokenService.DOMAIN;
+        ApiKeyBatchResultXO result = new ApiKeyBatchResultXO(item.getPrincipal(), domain);
+        long start = System.nanoTime();
+        try {
+            CUser user = item.getPrincipal() != null ? securityConfiguration.getUser(item.getPrincipal()) : null;
+            if (user == null) {
+                throw new IllegalArgumentException("User " + item.getPrincipal() + " not found");
+            }
+            SimplePrincipalCollection principals = new SimplePrincipalCollection(user.getId(), realmName(item, user));
+
+            boolean exists = apiTokenService.getApiKey(domain, principals).isPresent();
+            long lookupEnd = System.nanoTime();
+            result.setLookupMillis(millis(start, lookupEnd));
+
+            char[] apiKey = apiTokenService.rotateApiKey(domain, principals);
+            result.setWriteMillis(millis(lookupEnd));
+            result.setApiKey(new String(apiKey));
+            result.setStatus(exists ? ApiKeyBatchResultXO.ROTATED : ApiKeyBatchResultXO.CREATED);
+            log.trace("Provisioned apiKey for principal {}, domain: {}, status: {}", principals.getPrimaryPrincipal(), domain,
+                    result.getStatus());
+        } catch (Exception e) {
+            log.debug("Error provision apiKey for {}", item, e);
+            result.setStatus(ApiKeyBatchResultXO.FAILED);
+            result.setError(e.getMessage());
+        }
+        result.setMillis(millis(start));
+        return result;
+    }
+
+    private static String realmName(ApiKeyBatchItemXO item, CUser user) {
+        if (item.getRealm() != null && !item.getRealm().isEmpty()) {
+            return item.getRealm();
+        }
+        return ("[" + NexusPac4jRealm.NAME + "]").equals(user.getPassword()) ? NexusPac4jRealm.NAME : DEFAULT_REALM;
+    }
+
+    private static double millis(long start) {
+        return millis(start, System.nanoTime());
+    }
+
+    private static double millis(long start, long end) {
+        return (end - start) / 1_000_000d;
+    }
+
+}
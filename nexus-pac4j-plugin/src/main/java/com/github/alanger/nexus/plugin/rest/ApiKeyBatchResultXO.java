@@ -0,0 +1,110 @@
+package com.github.alanger.nexus.plugin.rest;
+
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * Result of batch API key provisioning for one item, written as a line of NDJSON.
+ * 
+ * @since 3.75.1-02
+ */
+public class ApiKeyBatchResultXO {
+
+    public static final String CREATED = "created";
+    public static final String ROTATED = "rotated";
+    public static final String FAILED = "failed";
+
+    @ApiModelProperty("User id")
+    private String principal;
+
+    @ApiModelProperty("Domain of API key")
+    private String domain;
+
+    @ApiModelProperty("created, rotated or failed")
+    private String status;
+
+    @ApiModelProperty("New API key")
+    private String apiKey;
+
+    @ApiModelProperty("Lookup of existing API key in milliseconds")
+    private double lookupMillis;
+
+    @ApiModelProperty("Deletion and creation of API key in milliseconds")
+    private double writeMillis;
+
+    @ApiModelProperty("Total processing time in milliseconds")
+    private double millis;
+
+    @ApiModelProperty("Error message")
+    private String error;
+
+    public ApiKeyBatchResultXO() {}
+
+    public ApiKeyBatchResultXO(String principal, String domain) {
+        this.principal = principal;
+        this.domain = domain;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public void setPrincipal(String principal) {
+        this.principal = principal;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    public double getLookupMillis() {
+        return lookupMillis;
+    }
+
+    public void setLookupMillis(double lookupMillis) {
+        this.lookupMillis = lookupMillis;
+    }
+
+    public double getWriteMillis() {
+        return writeMillis;
+    }
+
+    public void setWriteMillis(double writeMillis) {
+        this.writeMillis = writeMillis;
+    }
+
+    public double getMillis() {
+        return millis;
+    }
+
+    public void setMillis(double millis) {
+        this.millis = millis;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.alanger.nexus.plugin.ui;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiPredicate;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads top-level {@code action} and {@code method} of "/service/extdirect" request from the first bytes of the body,
+ * without building a map of the request. The read bytes are replayed by {@link #getRequest()} before the rest of the
+ * body, so the request can be passed down the filter chain without copying the body.
+ *
+ * <p>
+ * Batch request is a JSON array of calls, {@code action} and {@code method} of each call are read.
+ * Buffer of the read bytes is sized by {@code Content-Length} or grows by chunks, up to the limit.
+ *
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.bootstrap.DockerExtdirectFilter
+ */
+public final class ExtdirectRequestScanner {
+
+    public static final int DEFAULT_LIMIT = 8192;
+
+    private static final int CHUNK_SIZE = 512;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final HttpServletRequest request;
+
+    private HttpServletRequest wrapped;
+
+    private final List<Call> calls = new ArrayList<>();
+
+    private boolean batch;
+
+    private boolean complete;
+
+    /**
+     * Action and method of single call.
+     */
+    public static final class Call {
+
+        private final String action;
+
+        private final String method;
+
+        public Call(String action, String method) {
+            this.action = action;
+            this.method = method;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String toString() {
+            return action + "." + method;
+        }
+    }
+
+    private ExtdirectRequestScanner(HttpServletRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Scan up to {@code limit} bytes of the request body.
+     */
+    public static ExtdirectRequestScanner scan(HttpServletRequest request, int limit) throws IOException {
+        ExtdirectRequestScanner scanner = new ExtdirectRequestScanner(request);
+        InputStream in = request.getInputStream();
+        long contentLength = request.getContentLengthLong();
+        byte[] prefix = new byte[(int) Math.min(limit, contentLength >= 0 ? contentLength : CHUNK_SIZE)];
+        int length = 0;
+
+        try (JsonParser parser = JSON_FACTORY.createNonBlockingByteArrayParser()) {
+            ByteArrayFeeder feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            int depth = 0;
+            boolean eof = false;
+            String action = null;
+            String method = null;
+
+            while (!eof && !scanner.complete && length < limit) {
+                if (length == prefix.length) {
+                    // Content-Length is unknown or wrong, previous input is consumed by the parser
+                    prefix = Arrays.copyOf(prefix, Math.min(limit, Math.max(length * 2, CHUNK_SIZE)));
+                }
+                int n = in.read(prefix, length, Math.min(CHUNK_SIZE, prefix.length - length));
+                if (n < 0) {
+                    feeder.endOfInput();
+                    eof = true;
+                } else {
+                    feeder.feedInput(prefix, length, length + n);
+                    length += n;
+                }
+
+                JsonToken token;
+                while (!scanner.complete && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                    // Depth of call object
+                    int callDepth = scanner.batch ? 2 : 1;
+                    if (depth == 0 && token == JsonToken.START_ARRAY) {
+                        scanner.batch = true;
+                        depth++;
+                    } else if (token.isStructStart()) {
+                        depth++;
+                    } else if (token.isStructEnd()) {
+                        if (depth == callDepth && token == JsonToken.END_OBJECT) {
+                            scanner.calls.add(new Call(action, method));
+                            action = null;
+                            method = null;
+                        }
+                        depth--;
+                        scanner.complete = depth == 0;
+                    } else if (depth == callDepth && token.isScalarValue()) {
+                        String name = parser.getCurrentName();
+                        if ("action".equals(name)) {
+                            action = parser.getValueAsString();
+                        } else if ("method".equals(name)) {
+                            method = parser.getValueAsString();
+                        }
+                        // Single call does not need to be read to the end
+                        if (!scanner.batch && action != null && method != null) {
+                            scanner.calls.add(new Call(action, method));
+                            scanner.complete = true;
+                        }
+                    }
+                }
+            }
+            // Nothing more to find
+            scanner.complete = scanner.complete || eof;
+        } catch (JsonProcessingException e) {
+            // Not a JSON, pass as is
+            scanner.complete = true;
+        }
+
+        scanner.wrap(prefix, length);
+        return scanner;
+    }
+
+    private void wrap(byte[] prefix, int length) throws IOException {
+        ServletInputStream original = request.getInputStream();
+        ByteArrayInputStream head = new ByteArrayInputStream(prefix, 0, length);
+        InputStream replay = new SequenceInputStream(head, original);
+        ServletInputStream stream = new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return replay.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return replay.read(b, off, len);
+            }
+
+            // Scanned bytes not yet replayed are ready
+
+            @Override
+            public boolean isFinished() {
+                return head.available() == 0 && original.isFinished();
+            }
+
+            @Override
+            public boolean isReady() {
+                return head.available() > 0 || original.isReady();
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                original.setReadListener(readListener);
+            }
+        };
+
+        this.wrapped = new HttpServletRequestWrapper(request) {
+            private BufferedReader reader;
+
+            @Override
+            public ServletInputStream getInputStream() {
+                return stream;
+            }
+
+            @Override
+            public BufferedReader getReader() {
+                if (reader == null) {
+                    String encoding = getCharacterEncoding();
+                    Charset charset = encoding != null ? Charset.forName(encoding) : UTF_8;
+                    reader = new BufferedReader(new InputStreamReader(stream, charset));
+                }
+                return reader;
+            }
+        };
+    }
+
+    /**
+     * @return request, which body starts with the scanned bytes
+     */
+    public HttpServletRequest getRequest() {
+        return wrapped;
+    }
+
+    /**
+     * @return action of the first call
+     */
+    public String getAction() {
+        return calls.isEmpty() ? null : calls.get(0).getAction();
+    }
+
+    /**
+     * @return method of the first call
+     */
+    public String getMethod() {
+        return calls.isEmpty() ? null : calls.get(0).getMethod();
+    }
+
+    public List<Call> getCalls() {
+        return Collections.unmodifiableList(calls);
+    }
+
+    public boolean anyMatch(BiPredicate<String, String> predicate) {
+        return calls.stream().anyMatch(c -> predicate.test(c.getAction(), c.getMethod()));
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * @return {@code false} if the limit was reached before {@code action} and {@code method} of all calls were found
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+}
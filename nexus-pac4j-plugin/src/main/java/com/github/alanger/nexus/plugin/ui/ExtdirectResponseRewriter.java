@@ -0,0 +1,396 @@
+package com.github.alanger.nexus.plugin.ui;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Response wrapper of "/service/extdirect", which rewrites elements of {@code result.data} while the response is written.
+ *
+ * <p>
+ * Response is parsed by non-blocking parser as bytes arrive, tokens are copied to the real response unchanged,
+ * only element of {@code result.data} accepted by action and method is held in memory until it is rewritten.
+ * Batch response is a JSON array of responses, each of them is rewritten by its own action and method.
+ * If element of {@code result.data} starts before action, method or {@code result.success} of its response are known,
+ * the rest of the response is held until its end, so that data is never written without rewrite.
+ * Responses with status other than 200 or without JSON content are passed through as is.
+ * {@link #finish()} must be called after the filter chain.
+ *
+ * <pre>
+ * {"tid":41,"action":"coreui_Component","method":"readComponent","result":{
+ * "success":true,"data":{"id":"XXXXX","repositoryName":"my-repo-name","group":
+ * null,"name":"library/alpine","version":"latest","format":"docker"}},"type":"rpc"}
+ * </pre>
+ *
+ * @since 3.75.1-02
+ * @see com.github.alanger.nexus.bootstrap.DockerExtdirectFilter
+ */
+public class ExtdirectResponseRewriter extends HttpServletResponseWrapper {
+
+    /**
+     * Rewrite of single element of {@code result.data}.
+     */
+    @FunctionalInterface
+    public interface DataRewriter {
+        void rewrite(String action, String method, boolean success, ObjectNode data);
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private enum Mode {
+        UNKNOWN, PASS, REWRITE
+    }
+
+    private final BiPredicate<String, String> accepts;
+
+    private final DataRewriter rewriter;
+
+    private Mode mode = Mode.UNKNOWN;
+
+    private long contentLength = -1;
+
+    private ServletOutputStream outputStream;
+
+    private PrintWriter writer;
+
+    private ServletOutputStream out;
+
+    private JsonParser parser;
+
+    private ByteArrayFeeder feeder;
+
+    private JsonGenerator generator;
+
+    // State of current response
+    private String action;
+    private String method;
+    private boolean success;
+    private boolean successKnown;
+
+    // Current element of result.data, null if not buffered
+    private TokenBuffer buffer;
+    private int bufferDepth;
+
+    // Rest of current response held until its end (tokens and elements of result.data), null if not deferred
+    private List<Object> deferred;
+    private TokenBuffer deferredTokens;
+
+    /**
+     * @param accepts action and method of response which data should be rewritten
+     */
+    public ExtdirectResponseRewriter(HttpServletResponse response, BiPredicate<String, String> accepts, DataRewriter rewriter) {
+        super(response);
+        this.accepts = accepts;
+        this.rewriter = rewriter;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    ExtdirectResponseRewriter.this.write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ExtdirectResponseRewriter.this.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    ExtdirectResponseRewriter.this.flushOutput();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // Closed by finish()
+                }
+
+                // Rewritten and passed output is written to the stream of the wrapped response
+
+                @Override
+                public boolean isReady() {
+                    try {
+                        return getResponse().getOutputStream().isReady();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        getResponse().getOutputStream().setWriteListener(writeListener);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : UTF_8;
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+        }
+        return writer;
+    }
+
+    // Length may change after rewrite
+
+    @Override
+    public void setContentLength(int len) {
+        this.contentLength = len;
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        this.contentLength = len;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            this.contentLength = value != null ? Long.parseLong(value) : -1;
+        } else {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            setHeader(name, value);
+        } else {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        flushOutput();
+    }
+
+    private void init() throws IOException {
+        String contentType = getContentType();
+        boolean json = getStatus() == 200 && contentType != null && contentType.contains("json");
+        out = getResponse().getOutputStream();
+        if (json) {
+            mode = Mode.REWRITE;
+            parser = MAPPER.getFactory().createNonBlockingByteArrayParser();
+            feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+            generator = MAPPER.getFactory().createGenerator(out);
+        } else {
+            mode = Mode.PASS;
+            if (contentLength >= 0) {
+                getResponse().setContentLengthLong(contentLength);
+            }
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (mode == Mode.UNKNOWN) {
+            init();
+        }
+        if (mode == Mode.PASS) {
+            out.write(b, off, len);
+            return;
+        }
+        feeder.feedInput(b, off, off + len);
+        drain();
+    }
+
+    private void flushOutput() throws IOException {
+        if (generator != null) {
+            generator.flush();
+        } else if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Complete rewrite of the response.
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (mode == Mode.REWRITE) {
+            feeder.endOfInput();
+            drain();
+            if (deferred != null) {
+                // Truncated response
+                writeDeferred();
+            }
+            generator.flush();
+        }
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    private void drain() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            handle(token);
+        }
+    }
+
+    private void handle(JsonToken token) throws IOException {
+        if (buffer != null) {
+            buffer.copyCurrentEvent(parser);
+            if (token.isStructStart()) {
+                bufferDepth++;
+            } else if (token.isStructEnd() && --bufferDepth == 0) {
+                writeElement();
+            }
+            return;
+        }
+
+        JsonStreamContext ctx = parser.getParsingContext();
+        if (token == JsonToken.START_OBJECT && isResponse(ctx)) {
+            action = null;
+            method = null;
+            success = false;
+            successKnown = false;
+        } else if (token.isScalarValue()) {
+            String name = parser.getCurrentName();
+            if (isResponse(ctx) && "action".equals(name)) {
+                action = parser.getValueAsString();
+            } else if (isResponse(ctx) && "method".equals(name)) {
+                method = parser.getValueAsString();
+            } else if (isResult(ctx) && "success".equals(name)) {
+                success = parser.getValueAsBoolean();
+                successKnown = true;
+            }
+        } else if (token == JsonToken.START_OBJECT && isDataElement(ctx)) {
+            if (deferred == null && !isStateKnown()) {
+                deferred = new ArrayList<>();
+            }
+            if (deferred != null || accepts.test(action, method)) {
+                buffer = new TokenBuffer(parser);
+                buffer.copyCurrentEvent(parser);
+                bufferDepth = 1;
+                return;
+            }
+        } else if (token == JsonToken.END_OBJECT && deferred != null && isResponseParent(ctx)) {
+            writeDeferred();
+        }
+
+        if (deferred != null) {
+            if (deferredTokens == null) {
+                deferredTokens = new TokenBuffer(parser);
+            }
+            deferredTokens.copyCurrentEvent(parser);
+        } else {
+            generator.copyCurrentEvent(parser);
+        }
+    }
+
+    // Rewrite of data element can be decided
+    private boolean isStateKnown() {
+        return action != null && method != null && (successKnown || !accepts.test(action, method));
+    }
+
+    private void writeElement() throws IOException {
+        JsonNode node;
+        try (JsonParser p = buffer.asParser(MAPPER)) {
+            node = MAPPER.readTree(p);
+        }
+        buffer = null;
+        if (deferred != null) {
+            if (deferredTokens != null) {
+                deferred.add(deferredTokens);
+                deferredTokens = null;
+            }
+            deferred.add(node);
+            return;
+        }
+        rewriteElement(node);
+    }
+
+    private void rewriteElement(JsonNode node) throws IOException {
+        if (node instanceof ObjectNode && accepts.test(action, method)) {
+            rewriter.rewrite(action, method, success, (ObjectNode) node);
+        }
+        generator.writeTree(node);
+    }
+
+    private void writeDeferred() throws IOException {
+        List<Object> segments = deferred;
+        if (deferredTokens != null) {
+            segments.add(deferredTokens);
+        }
+        deferred = null;
+        deferredTokens = null;
+        for (Object segment : segments) {
+            if (segment instanceof TokenBuffer) {
+                ((TokenBuffer) segment).serialize(generator);
+            } else {
+                rewriteElement((JsonNode) segment);
+            }
+        }
+    }
+
+    // Context of response object or of element of batch response array
+    private static boolean isResponse(JsonStreamContext ctx) {
+        JsonStreamContext parent = ctx != null ? ctx.getParent() : null;
+        if (ctx == null || !ctx.inObject() || parent == null) {
+            return false;
+        }
+        return parent.inRoot() || parent.inArray() && parent.getParent() != null && parent.getParent().inRoot();
+    }
+
+    // Context of root or of batch response array, the parent of response object
+    private static boolean isResponseParent(JsonStreamContext ctx) {
+        return ctx != null && (ctx.inRoot() || ctx.inArray() && ctx.getParent() != null && ctx.getParent().inRoot());
+    }
+
+    // Context of "result" object
+    private static boolean isResult(JsonStreamContext ctx) {
+        JsonStreamContext parent = ctx != null ? ctx.getParent() : null;
+        return ctx != null && ctx.inObject() && parent != null && "result".equals(parent.getCurrentName()) && isResponse(parent);
+    }
+
+    // Context of "result.data" object or of element of "result.data" array
+    private static boolean isDataElement(JsonStreamContext ctx) {
+        JsonStreamContext parent = ctx.getParent();
+        if (parent == null) {
+            return false;
+        }
+        if (parent.inObject()) {
+            return "data".equals(parent.getCurrentName()) && isResult(parent);
+        }
+        JsonStreamContext grandParent = parent.getParent();
+        return parent.inArray() && grandParent != null && "data".equals(grandParent.getCurrentName()) && isResult(grandParent);
+    }
+
+}
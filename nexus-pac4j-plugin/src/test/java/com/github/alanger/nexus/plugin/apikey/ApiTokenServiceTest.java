@@ -0,0 +1,168 @@
+package com.github.alanger.nexus.plugin.apikey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.OffsetDateTime;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.shiro.authc.UsernamePasswordToken;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.security.authc.apikey.ApiKey;
+import org.sonatype.nexus.security.authc.apikey.ApiKeyService;
+
+public class ApiTokenServiceTest {
+
+    private static final char[] TOKEN = "secret-token".toCharArray();
+
+    private final PrincipalCollection principals = new SimplePrincipalCollection("user", "realm");
+
+    private ApiKeyService apiKeyService;
+
+    private ApiKey apiKey;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        apiKeyService = mock(ApiKeyService.class);
+        apiKey = mock(ApiKey.class);
+        when(apiKey.getPrincipals()).thenReturn(principals);
+        when(apiKey.getPrimaryPrincipal()).thenReturn("user");
+        when(apiKey.getCreated()).thenReturn(OffsetDateTime.now());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private ApiTokenService service(boolean indexEnabled) {
+        return new ApiTokenService(null, null, apiKeyService, indexEnabled, 100, 300);
+    }
+
+    private UsernamePasswordToken token() {
+        return new UsernamePasswordToken("user", TOKEN);
+    }
+
+    @Test
+    public void indexedTokenIsNotLookedUpAgain() {
+        when(apiKeyService.getApiKeyByToken(eq(ApiTokenService.DOMAIN), any())).thenReturn(Optional.of(apiKey));
+        ApiTokenService service = service(true);
+
+        assertTrue(service.findApiKeySnapshot(token(), false).isPresent());
+        assertTrue(service.findApiKeySnapshot(token(), false).isPresent());
+
+        verify(apiKeyService, times(1)).getApiKeyByToken(eq(ApiTokenService.DOMAIN), any());
+        assertEquals(1, service.getIndexSize());
+    }
+
+    @Test
+    public void disabledIndexAlwaysLooksUp() {
+        when(apiKeyService.getApiKeyByToken(eq(ApiTokenService.DOMAIN), any())).thenReturn(Optional.of(apiKey));
+        ApiTokenService service = service(false);
+
+        service.findApiKeySnapshot(token(), false);
+        service.findApiKeySnapshot(token(), false);
+
+        verify(apiKeyService, times(2)).getApiKeyByToken(eq(ApiTokenService.DOMAIN), any());
+        assertEquals(0, service.getIndexSize());
+    }
+
+    @Test
+    public void deleteEvictsIndexedToken() {
+        when(apiKeyService.getApiKeyByToken(eq(ApiTokenService.DOMAIN), any())).thenReturn(Optional.of(apiKey),
+                Optional.empty());
+        ApiTokenService service = service(true);
+
+        assertTrue(service.findApiKeySnapshot(token(), false).isPresent());
+        service.deleteApiKey(ApiTokenService.DOMAIN, principals);
+
+        assertEquals(0, service.getIndexSize());
+        assertFalse(service.findApiKeySnapshot(token(), false).isPresent());
+    }
+
+    @Test
+    public void lookupRacingWithDeleteIsNotIndexed() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        when(apiKeyService.getApiKeyByToken(eq(ApiTokenService.DOMAIN), any())).thenAnswer(invocation -> {
+            if (calls.getAndIncrement() == 0) {
+                // Key is read from the database before it is deleted
+                entered.countDown();
+                assertTrue(proceed.await(10, TimeUnit.SECONDS));
+                return Optional.of(apiKey);
+            }
+            return Optional.empty();
+        });
+        ApiTokenService service = service(true);
+
+        Future<Optional<ApiKeySnapshot>> lookup = executor.submit(() -> service.findApiKeySnapshot(token(), false));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        service.deleteApiKey(ApiTokenService.DOMAIN, principals);
+        proceed.countDown();
+
+        assertTrue(lookup.get(10, TimeUnit.SECONDS).isPresent());
+        assertEquals(0, service.getIndexSize());
+        assertFalse(service.findApiKeySnapshot(token(), false).isPresent());
+    }
+
+    @Test
+    public void domainAsLoginIsLookedUpFirst() {
+        when(apiKeyService.getApiKeyByToken(eq("DockerToken"), any())).thenReturn(Optional.of(apiKey));
+        ApiTokenService service = service(true);
+        UsernamePasswordToken token = new UsernamePasswordToken("DockerToken", TOKEN);
+
+        assertEquals(apiKey, service.findApiKey(ApiTokenService.DOMAIN, token, true).get());
+        assertEquals("user", service.findApiKeySnapshot(ApiTokenService.DOMAIN, token, true).get().getPrimaryPrincipal());
+        assertFalse(service.findApiKey(ApiTokenService.DOMAIN, token, false).isPresent());
+        assertFalse(service.findApiKeySnapshot(ApiTokenService.DOMAIN, token, false).isPresent());
+    }
+
+    @Test
+    public void createAndRotateNotifyListeners() {
+        when(apiKeyService.createApiKey(eq(ApiTokenService.DOMAIN), any())).thenReturn(TOKEN);
+        ApiTokenService service = service(false);
+        AtomicInteger created = new AtomicInteger();
+        Runnable listener = created::incrementAndGet;
+        service.addCreateListener(listener);
+
+        service.createApiKey(principals);
+        service.rotateApiKey(ApiTokenService.DOMAIN, principals);
+        assertEquals(2, created.get());
+
+        service.removeCreateListener(listener);
+        service.createApiKey(principals);
+        assertEquals(2, created.get());
+    }
+
+    @Test
+    public void snapshotDoesNotKeepToken() {
+        when(apiKey.getApiKey()).thenReturn(TOKEN);
+        ApiKeySnapshot snapshot = new ApiKeySnapshot(ApiTokenService.DOMAIN, apiKey);
+
+        assertEquals("user", snapshot.getPrimaryPrincipal());
+        assertEquals(principals, snapshot.getPrincipals());
+        assertTrue(snapshot.matches(ApiTokenService.DOMAIN, principals));
+        assertFalse(snapshot.toString().contains(String.valueOf(TOKEN)));
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.github.alanger.nexus.plugin.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.sonatype.nexus.crypto.LegacyCipherFactory;
+import org.sonatype.nexus.crypto.LegacyCipherFactory.PbeCipher;
+
+public class EncryptedStringTest {
+
+    // Reversible cipher, output depends only on input like the PBE cipher with fixed salt and iv
+    private static final LegacyCipherFactory FACTORY = (password, salt, iv) -> new PbeCipher() {
+        @Override
+        public byte[] encrypt(byte[] bytes) {
+            return xor(bytes);
+        }
+
+        @Override
+        public byte[] decrypt(byte[] bytes) {
+            return xor(bytes);
+        }
+
+        private byte[] xor(byte[] bytes) {
+            byte[] result = new byte[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                result[i] = (byte) (bytes[i] ^ (0x5A + i));
+            }
+            return result;
+        }
+    };
+
+    private static List<String> values(int size) {
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(i % 7 == 3 ? null : "principal-" + i + "-\u00e9");
+        }
+        return values;
+    }
+
+    private static void assertBulkMatchesSingle(EncryptedString encryptedString, List<String> values) {
+        List<String> encrypted = encryptedString.encryptAll(values);
+        assertEquals(values.size(), encrypted.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(encryptedString.encrypt(values.get(i)), encrypted.get(i));
+        }
+
+        List<String> decrypted = encryptedString.decryptAll(encrypted);
+        assertEquals(values, decrypted);
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(values.get(i), encryptedString.decrypt(encrypted.get(i)));
+        }
+    }
+
+    @Test
+    public void parallelBulkMatchesSingleValues() throws Exception {
+        EncryptedString encryptedString = new EncryptedString(FACTORY, "password", "salt", "iv", 4);
+
+        assertBulkMatchesSingle(encryptedString, values(1000));
+        assertTrue(encryptedString.getCipherPoolSize() <= 4);
+    }
+
+    @Test
+    public void smallBulkMatchesSingleValues() throws Exception {
+        EncryptedString encryptedString = new EncryptedString(FACTORY, "password", "salt", "iv", 4);
+
+        assertBulkMatchesSingle(encryptedString, values(10));
+    }
+
+    @Test
+    public void sequentialBulkMatchesSingleValues() throws Exception {
+        EncryptedString encryptedString = new EncryptedString(FACTORY, "password", "salt", "iv", 1);
+
+        assertBulkMatchesSingle(encryptedString, values(200));
+    }
+
+    @Test
+    public void nullValuesStayNull() throws Exception {
+        EncryptedString encryptedString = new EncryptedString(FACTORY, "password", "salt", "iv", 4);
+        List<String> nulls = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            nulls.add(null);
+        }
+
+        assertNull(encryptedString.encrypt(null));
+        assertNull(encryptedString.decrypt(null));
+        assertEquals(nulls, encryptedString.encryptAll(nulls));
+        assertEquals(nulls, encryptedString.decryptAll(nulls));
+    }
+
+}
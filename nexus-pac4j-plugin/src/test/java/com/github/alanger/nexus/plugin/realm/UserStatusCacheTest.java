@@ -0,0 +1,98 @@
+package com.github.alanger.nexus.plugin.realm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.security.UserPrincipalsHelper;
+import org.sonatype.nexus.security.user.UserStatus;
+
+public class UserStatusCacheTest {
+
+    private final PrincipalCollection local = new SimplePrincipalCollection("user", "NexusAuthenticatingRealm");
+
+    private final PrincipalCollection token = new SimplePrincipalCollection("user", "tokenRealm");
+
+    private final UserStatusCache cache = new UserStatusCache();
+
+    private UserPrincipalsHelper principalsHelper;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        principalsHelper = mock(UserPrincipalsHelper.class);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void statusIsCachedByRealm() throws Exception {
+        when(principalsHelper.getUserStatus(eq(local))).thenReturn(UserStatus.active);
+        when(principalsHelper.getUserStatus(eq(token))).thenReturn(UserStatus.disabled);
+
+        assertEquals(UserStatus.active, cache.getUserStatus(principalsHelper, local));
+        assertEquals(UserStatus.disabled, cache.getUserStatus(principalsHelper, token));
+        assertEquals(UserStatus.active, cache.getUserStatus(principalsHelper, local));
+
+        verify(principalsHelper, times(2)).getUserStatus(any());
+    }
+
+    @Test
+    public void invalidateRemovesAllRealms() throws Exception {
+        when(principalsHelper.getUserStatus(any())).thenReturn(UserStatus.active);
+        cache.getUserStatus(principalsHelper, local);
+        cache.getUserStatus(principalsHelper, token);
+
+        cache.invalidate("user");
+        cache.getUserStatus(principalsHelper, local);
+        cache.getUserStatus(principalsHelper, token);
+
+        verify(principalsHelper, times(4)).getUserStatus(any());
+    }
+
+    @Test
+    public void statusLoadedDuringInvalidationIsNotCached() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        when(principalsHelper.getUserStatus(any())).thenAnswer(invocation -> {
+            if (calls.getAndIncrement() == 0) {
+                // Status is read before the user is disabled
+                entered.countDown();
+                assertTrue(proceed.await(10, TimeUnit.SECONDS));
+                return UserStatus.active;
+            }
+            return UserStatus.disabled;
+        });
+
+        Future<UserStatus> load = executor.submit(() -> cache.getUserStatus(principalsHelper, token));
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        cache.invalidate("user");
+        proceed.countDown();
+
+        assertEquals(UserStatus.active, load.get(10, TimeUnit.SECONDS));
+        assertEquals(UserStatus.disabled, cache.getUserStatus(principalsHelper, token));
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.repository.Repository;
+import org.sonatype.nexus.security.SecurityHelper;
+import org.sonatype.nexus.selector.SelectorManager;
+
+public class ContentSelectorIndexTest {
+
+    private SecurityHelper securityHelper;
+
+    private ContentSelectorIndex index;
+
+    private Repository repository;
+
+    @Before
+    public void setUp() {
+        SelectorManager selectorManager = mock(SelectorManager.class);
+        when(selectorManager.browse()).thenReturn(Collections.emptyList());
+        securityHelper = mock(SecurityHelper.class);
+        index = new ContentSelectorIndex(selectorManager, securityHelper, 30);
+        repository = mock(Repository.class);
+        when(repository.getName()).thenReturn("maven-releases");
+    }
+
+    private static Subject subject(PrincipalCollection principals) {
+        Subject subject = mock(Subject.class);
+        when(subject.getPrincipals()).thenReturn(principals);
+        when(subject.getPrincipal()).thenReturn(principals.getPrimaryPrincipal());
+        return subject;
+    }
+
+    @Test
+    public void checksAreCachedByRealm() throws Exception {
+        Subject local = subject(new SimplePrincipalCollection("user", "NexusAuthenticatingRealm"));
+        Subject token = subject(new SimplePrincipalCollection("user", "tokenRealm"));
+        when(securityHelper.anyPermitted(eq(local), any(Permission[].class))).thenReturn(true);
+        when(securityHelper.anyPermitted(eq(token), any(Permission[].class))).thenReturn(false);
+
+        assertTrue(index.anyPermitted(local, repository, "add"));
+        assertFalse(index.anyPermitted(token, repository, "add"));
+        assertTrue(index.anyPermitted(local, repository, "add"));
+        assertFalse(index.anyPermitted(token, repository, "add"));
+
+        assertEquals(2, index.getCheckCacheSize());
+        verify(securityHelper, times(2)).anyPermitted(any(Subject.class), any(Permission[].class));
+    }
+
+    @Test
+    public void checksAreSharedBySameRealm() throws Exception {
+        Subject first = subject(new SimplePrincipalCollection("user", "tokenRealm"));
+        Subject second = subject(new SimplePrincipalCollection("user", "tokenRealm"));
+        when(securityHelper.anyPermitted(any(Subject.class), any(Permission[].class))).thenReturn(true);
+
+        assertTrue(index.anyPermitted(first, repository, "add"));
+        assertTrue(index.anyPermitted(second, repository, "add"));
+
+        verify(securityHelper, times(1)).anyPermitted(any(Subject.class), any(Permission[].class));
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.github.alanger.nexus.plugin.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class RateBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final double RATE = 10; // Requests per second
+
+    private static final long INTERVAL = RateBucket.interval(RATE);
+
+    @Test
+    public void intervalAndTolerance() {
+        assertEquals(SECOND / 10, INTERVAL);
+        assertEquals(0, RateBucket.tolerance(RATE, 1));
+        assertEquals(4 * INTERVAL, RateBucket.tolerance(RATE, 5));
+        assertEquals(5 * INTERVAL, RateBucket.refillNanos(RATE, 5));
+    }
+
+    @Test
+    public void burstIsAllowedThenRejected() {
+        RateBucket bucket = new RateBucket();
+        long tolerance = RateBucket.tolerance(RATE, 5);
+        long now = 1000;
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(now, INTERVAL, tolerance));
+        }
+        long wait = bucket.tryAcquire(now, INTERVAL, tolerance);
+
+        assertEquals(INTERVAL, wait);
+        assertEquals(5, bucket.getAllowed());
+        assertEquals(1, bucket.getRejected());
+    }
+
+    @Test
+    public void requestIsAllowedAfterWait() {
+        RateBucket bucket = new RateBucket();
+        long now = 1000;
+
+        assertEquals(0, bucket.tryAcquire(now, INTERVAL, 0));
+        long wait = bucket.tryAcquire(now, INTERVAL, 0);
+        assertEquals(INTERVAL, wait);
+
+        assertTrue(bucket.tryAcquire(now + wait - 1, INTERVAL, 0) > 0);
+        assertEquals(0, bucket.tryAcquire(now + wait, INTERVAL, 0));
+    }
+
+    @Test
+    public void idleBucketIsFullAfterRefill() {
+        RateBucket bucket = new RateBucket();
+        long tolerance = RateBucket.tolerance(RATE, 3);
+        long now = -5 * SECOND; // nanoTime may be negative
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(now, INTERVAL, tolerance));
+        }
+        now += RateBucket.refillNanos(RATE, 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(now, INTERVAL, tolerance));
+        }
+        assertTrue(bucket.tryAcquire(now, INTERVAL, tolerance) > 0);
+    }
+
+    @Test
+    public void refundReturnsRequest() {
+        RateBucket bucket = new RateBucket();
+        long now = 1000;
+
+        assertEquals(0, bucket.tryAcquire(now, INTERVAL, 0));
+        bucket.refund(INTERVAL);
+
+        assertEquals(0, bucket.getAllowed());
+        assertEquals(0, bucket.tryAcquire(now, INTERVAL, 0));
+    }
+
+    @Test
+    public void concurrentAcquireDoesNotExceedBurst() throws Exception {
+        RateBucket bucket = new RateBucket();
+        int burst = 50;
+        long tolerance = RateBucket.tolerance(RATE, burst);
+        long now = 1000;
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger allowed = new AtomicInteger();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 100; i++) {
+                        if (bucket.tryAcquire(now, INTERVAL, tolerance) == 0) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(burst, allowed.get());
+        assertEquals(burst, bucket.getAllowed());
+        assertEquals(threads * 100 - burst, bucket.getRejected());
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.github.alanger.nexus.plugin.ui;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+
+public class ExtdirectRequestScannerTest {
+
+    private static String json(String value) {
+        return value.replace('\'', '"');
+    }
+
+    private static HttpServletRequest request(String body, boolean contentLength) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContentLengthLong()).thenReturn(contentLength ? (long) bytes.length : -1L);
+        when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+                throw new UnsupportedOperationException();
+            }
+        });
+        return request;
+    }
+
+    private static String readBody(ExtdirectRequestScanner scanner) throws IOException {
+        InputStream in = scanner.getRequest().getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toString(UTF_8.name());
+    }
+
+    @Test
+    public void singleCall() throws IOException {
+        String body = json("{'action':'coreui_Component','method':'readAsset','data':['a','b'],'type':'rpc','tid':17}");
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, true), ExtdirectRequestScanner.DEFAULT_LIMIT);
+
+        assertTrue(scanner.isComplete());
+        assertFalse(scanner.isBatch());
+        assertEquals("coreui_Component", scanner.getAction());
+        assertEquals("readAsset", scanner.getMethod());
+        assertEquals(body, readBody(scanner));
+    }
+
+    @Test
+    public void batchCalls() throws IOException {
+        String body = json("[{'data':[{'name':'x'}],'action':'coreui_Search','method':'read','tid':1},"
+                + "{'action':'coreui_Component','method':'readComponent','data':['a'],'tid':2}]");
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, false), ExtdirectRequestScanner.DEFAULT_LIMIT);
+
+        assertTrue(scanner.isComplete());
+        assertTrue(scanner.isBatch());
+        assertEquals(2, scanner.getCalls().size());
+        assertEquals("coreui_Search.read", scanner.getCalls().get(0).toString());
+        assertEquals("coreui_Component.readComponent", scanner.getCalls().get(1).toString());
+        assertEquals(body, readBody(scanner));
+    }
+
+    @Test
+    public void callAfterLimitIsNotComplete() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            data.append("'value-").append(i).append("',");
+        }
+        String body = json("{'data':[" + data + "'last'],'action':'coreui_Component','method':'readAsset'}");
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, false), 1024);
+
+        assertFalse(scanner.isComplete());
+        assertEquals(0, scanner.getCalls().size());
+        assertEquals(body, readBody(scanner));
+    }
+
+    @Test
+    public void bodyLongerThanChunkIsScanned() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            data.append("'value-").append(i).append("',");
+        }
+        String body = json("{'data':[" + data + "'last'],'action':'coreui_Component','method':'readAsset'}");
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, false), ExtdirectRequestScanner.DEFAULT_LIMIT);
+
+        assertTrue(scanner.isComplete());
+        assertEquals("readAsset", scanner.getMethod());
+        assertEquals(body, readBody(scanner));
+    }
+
+    @Test
+    public void notJsonIsPassedAsIs() throws IOException {
+        String body = "action=coreui_Component&method=readAsset";
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, true), ExtdirectRequestScanner.DEFAULT_LIMIT);
+
+        assertTrue(scanner.isComplete());
+        assertEquals(0, scanner.getCalls().size());
+        assertEquals(body, readBody(scanner));
+    }
+
+    @Test
+    public void replayIsNotFinishedWhileScannedBytesAreUnread() throws IOException {
+        String body = json("{'action':'coreui_Component','method':'readAsset'}");
+        ExtdirectRequestScanner scanner = ExtdirectRequestScanner.scan(request(body, true), ExtdirectRequestScanner.DEFAULT_LIMIT);
+        ServletInputStream in = scanner.getRequest().getInputStream();
+
+        // Whole body was scanned, the original stream is finished
+        assertFalse(in.isFinished());
+        assertTrue(in.isReady());
+
+        assertEquals(body, readBody(scanner));
+        assertTrue(in.isFinished());
+    }
+
+}
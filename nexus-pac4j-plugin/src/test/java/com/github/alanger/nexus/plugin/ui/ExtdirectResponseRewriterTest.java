@@ -0,0 +1,160 @@
+package com.github.alanger.nexus.plugin.ui;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExtdirectResponseRewriterTest {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private HttpServletResponse response;
+
+    private WriteListener writeListener;
+
+    // Action, method and success of each rewritten element
+    private final List<String> calls = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        response = mock(HttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+        when(response.getContentType()).thenReturn("application/json");
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return writeListener == null;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                writeListener = listener;
+            }
+        });
+    }
+
+    private String rewrite(String json, int chunk) throws IOException {
+        ExtdirectResponseRewriter rewriter = new ExtdirectResponseRewriter(response, //
+                (action, method) -> "coreui_Component".equals(action) && "readAsset".equals(method), //
+                (action, method, success, data) -> {
+                    calls.add(action + "." + method + ":" + success);
+                    if (success) {
+                        data.put("createdBy", "***");
+                    }
+                });
+        byte[] bytes = json.getBytes(UTF_8);
+        for (int off = 0; off < bytes.length; off += chunk) {
+            rewriter.getOutputStream().write(bytes, off, Math.min(chunk, bytes.length - off));
+        }
+        rewriter.finish();
+        return body.toString(UTF_8.name());
+    }
+
+    private static String json(String value) {
+        return value.replace('\'', '"');
+    }
+
+    @Test
+    public void singleResponseIsRewritten() throws IOException {
+        String result = rewrite(json("{'tid':1,'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':true,'data':{'id':'a','createdBy':'admin'}},'type':'rpc'}"), 7);
+
+        assertEquals(json("{'tid':1,'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':true,'data':{'id':'a','createdBy':'***'}},'type':'rpc'}"), result);
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void batchResponseIsRewrittenByOwnAction() throws IOException {
+        String result = rewrite(json("[{'tid':1,'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':true,'data':[{'createdBy':'admin'},{'createdBy':'user'}]},'type':'rpc'},"
+                + "{'tid':2,'action':'coreui_Search','method':'read','result':"
+                + "{'success':true,'data':[{'createdBy':'admin'}]},'type':'rpc'}]"), 1);
+
+        assertEquals(json("[{'tid':1,'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':true,'data':[{'createdBy':'***'},{'createdBy':'***'}]},'type':'rpc'},"
+                + "{'tid':2,'action':'coreui_Search','method':'read','result':"
+                + "{'success':true,'data':[{'createdBy':'admin'}]},'type':'rpc'}]"), result);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void dataBeforeActionAndMethodIsRewrittenInFieldOrder() throws IOException {
+        String result = rewrite(json("{'tid':1,'result':{'data':[{'createdBy':'admin'},{'createdBy':'user'}],"
+                + "'success':true},'type':'rpc','action':'coreui_Component','method':'readAsset'}"), 5);
+
+        assertEquals(json("{'tid':1,'result':{'data':[{'createdBy':'***'},{'createdBy':'***'}],"
+                + "'success':true},'type':'rpc','action':'coreui_Component','method':'readAsset'}"), result);
+        assertEquals(2, calls.size());
+        assertEquals("coreui_Component.readAsset:true", calls.get(0));
+    }
+
+    @Test
+    public void dataBeforeSuccessWaitsForSuccess() throws IOException {
+        String result = rewrite(json("{'action':'coreui_Component','method':'readAsset','result':"
+                + "{'data':{'createdBy':'admin'},'success':true}}"), 3);
+
+        assertEquals(json("{'action':'coreui_Component','method':'readAsset','result':"
+                + "{'data':{'createdBy':'***'},'success':true}}"), result);
+    }
+
+    @Test
+    public void failedResponseIsNotSuccess() throws IOException {
+        String result = rewrite(json("{'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':false,'data':{'createdBy':'admin'}}}"), 64);
+
+        assertEquals(json("{'action':'coreui_Component','method':'readAsset','result':"
+                + "{'success':false,'data':{'createdBy':'admin'}}}"), result);
+        assertEquals("coreui_Component.readAsset:false", calls.get(0));
+    }
+
+    @Test
+    public void missingSuccessIsNotSuccess() throws IOException {
+        rewrite(json("{'action':'coreui_Component','method':'readAsset','result':{'data':{'createdBy':'admin'}}}"), 64);
+
+        assertEquals("coreui_Component.readAsset:false", calls.get(0));
+    }
+
+    @Test
+    public void writeListenerIsSetOnResponse() throws IOException {
+        ExtdirectResponseRewriter rewriter = new ExtdirectResponseRewriter(response, (action, method) -> true, //
+                (action, method, success, data) -> {
+                });
+        WriteListener listener = mock(WriteListener.class);
+
+        assertTrue(rewriter.getOutputStream().isReady());
+        rewriter.getOutputStream().setWriteListener(listener);
+
+        assertSame(listener, writeListener);
+        assertFalse(rewriter.getOutputStream().isReady());
+    }
+
+    @Test
+    public void notJsonResponseIsPassedThrough() throws IOException {
+        when(response.getStatus()).thenReturn(500);
+        String json = json("{'action':'coreui_Component','method':'readAsset','result':{'success':true,'data':{'createdBy':'admin'}}}");
+
+        assertEquals(json, rewrite(json, 64));
+        assertEquals(0, calls.size());
+    }
+
+}
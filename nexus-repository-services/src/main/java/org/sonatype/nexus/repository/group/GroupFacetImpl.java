@@ -14,10 +14,14 @@ package org.sonatype.nexus.repository.group;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -25,6 +29,8 @@ import javax.inject.Named;
 import javax.validation.ConstraintViolation;
 import javax.validation.constraints.NotNull;
 
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.subject.PrincipalCollection;
 import org.sonatype.nexus.common.collect.AttributesMap;
 import org.sonatype.nexus.common.stateguard.Guarded;
 import org.sonatype.nexus.repository.FacetSupport;
@@ -35,14 +41,24 @@ import org.sonatype.nexus.repository.cache.CacheInfo;
 import org.sonatype.nexus.repository.cache.RepositoryCacheInvalidationService;
 import org.sonatype.nexus.repository.config.Configuration;
 import org.sonatype.nexus.repository.config.ConfigurationFacet;
+import org.sonatype.nexus.repository.manager.RepositoryCreatedEvent;
+import org.sonatype.nexus.repository.manager.RepositoryDeletedEvent;
 import org.sonatype.nexus.repository.manager.RepositoryManager;
 import org.sonatype.nexus.repository.security.RepositoryPermissionChecker;
 import org.sonatype.nexus.repository.types.GroupType;
 import org.sonatype.nexus.repository.view.Content;
+import org.sonatype.nexus.security.authz.AuthorizationConfigurationChanged;
+import org.sonatype.nexus.security.user.UserDeletedEvent;
+import org.sonatype.nexus.security.user.UserUpdatedEvent;
+import org.sonatype.nexus.selector.SelectorConfigurationEvent;
 import org.sonatype.nexus.validation.ConstraintViolationFactory;
 
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
+import com.google.common.eventbus.AllowConcurrentEvents;
+import com.google.common.eventbus.Subscribe;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.Objects.isNull;
@@ -89,6 +105,52 @@ public class GroupFacetImpl
 
   protected CacheController cacheController;
 
+  // SSO patch: resolved and format-validated members, null until resolved
+  private volatile List<Repository> membersSnapshot;
+
+  // SSO patch: incremented on each invalidation of the snapshot
+  private final AtomicLong membersGeneration = new AtomicLong();
+
+  // SSO patch: incremented on invalidation of members of any group, flattened members of all groups become stale
+  private static final AtomicLong GRAPH_GENERATION = new AtomicLong();
+
+  // SSO patch: flattened members, null until computed
+  private volatile Flattened flattened;
+
+  private static class Flattened
+  {
+    final long generation;
+
+    final boolean complete;
+
+    final List<Repository> leafMembers;
+
+    final List<Repository> allMembers;
+
+    final Set<String> allMemberNames;
+
+    // Name of group -> its members not filtered by privileges, for this group and nested groups
+    final Map<String, List<Repository>> groupMembers;
+
+    Flattened(final long generation,
+              final boolean complete,
+              final List<Repository> leafMembers,
+              final List<Repository> allMembers,
+              final Map<String, List<Repository>> groupMembers)
+    {
+      this.generation = generation;
+      this.complete = complete;
+      this.leafMembers = Collections.unmodifiableList(leafMembers);
+      this.allMembers = Collections.unmodifiableList(allMembers);
+      this.groupMembers = Collections.unmodifiableMap(groupMembers);
+      Set<String> names = new HashSet<>();
+      for (Repository repository : allMembers) {
+        names.add(repository.getName());
+      }
+      this.allMemberNames = Collections.unmodifiableSet(names);
+    }
+  }
+
   @Inject // SSO patch
   private RepositoryPermissionChecker repositoryPermissionChecker;
 
@@ -96,6 +158,36 @@ public class GroupFacetImpl
   @Named("${nexus.sso.group.nontransitive.privileges.enabled:-false}")
   private boolean groupPermissionEnabled;
 
+  @Inject // SSO patch, seconds, '0' for disable
+  @Named("${nexus.sso.group.nontransitive.privileges.ttl:-10}")
+  private long groupPermissionTtl;
+
+  // SSO patch: principals of all realms -> members permitted to the subject
+  private volatile Cache<PrincipalCollection, PermittedMembers> permittedMembers;
+
+  // SSO patch: incremented on each change of roles, privileges or users
+  private final AtomicLong permissionGeneration = new AtomicLong();
+
+  private static class PermittedMembers
+  {
+    // Snapshot of members from which the list was filtered
+    final List<Repository> source;
+
+    // Members of nested groups are stale when it is changed
+    final long graphGeneration;
+
+    final List<Repository> members;
+
+    // Permitted members of nested groups, null until computed
+    volatile Flattened nested;
+
+    PermittedMembers(final List<Repository> source, final long graphGeneration, final List<Repository> members) {
+      this.source = source;
+      this.graphGeneration = graphGeneration;
+      this.members = members;
+    }
+  }
+
   @Inject
   public GroupFacetImpl(final RepositoryManager repositoryManager,
                         final ConstraintViolationFactory constraintViolationFactory,
@@ -122,6 +214,11 @@ public class GroupFacetImpl
   }
 
   private boolean containsGroup(Repository root, String repositoryName, Set<Repository> checkedGroups) {
+    // SSO patch
+    GroupFacet rootFacet = root.facet(GroupFacet.class);
+    if (rootFacet instanceof GroupFacetImpl) {
+      return ((GroupFacetImpl) rootFacet).flattened(new HashSet<>()).allMemberNames.contains(repositoryName);
+    }
     return root.facet(GroupFacet.class).members().stream().anyMatch((repository) -> {
       return checkedGroups.add(repository) &&
           (repository.getName().equals(repositoryName) ||
@@ -150,6 +247,16 @@ public class GroupFacetImpl
 
     cacheController = new CacheController(-1, null);
 
+    invalidateMembers(); // SSO patch
+
+    // SSO patch
+    if (groupPermissionEnabled) {
+      permittedMembers = CacheBuilder.newBuilder()
+          .maximumSize(10000)
+          .expireAfterWrite(Math.max(0, groupPermissionTtl), TimeUnit.SECONDS)
+          .build();
+    }
+
     log.debug("Config: {}", config);
   }
 
@@ -165,11 +272,87 @@ public class GroupFacetImpl
     }
   }
 
+  @Override
+  protected void doStart() throws Exception {
+    getEventManager().register(this); // SSO patch
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    getEventManager().unregister(this); // SSO patch
+  }
+
   @Override
   protected void doDestroy() throws Exception {
+    invalidateMembers(); // SSO patch
     config = null;
   }
 
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final RepositoryCreatedEvent event) {
+    maybeInvalidateMembers(event.getRepository());
+  }
+
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final RepositoryDeletedEvent event) {
+    maybeInvalidateMembers(event.getRepository());
+  }
+
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final AuthorizationConfigurationChanged event) {
+    invalidatePermittedMembers();
+  }
+
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final UserUpdatedEvent event) {
+    invalidatePermittedMembers();
+  }
+
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final UserDeletedEvent event) {
+    invalidatePermittedMembers();
+  }
+
+  // SSO patch
+  @Subscribe
+  @AllowConcurrentEvents
+  public void on(final SelectorConfigurationEvent event) {
+    invalidatePermittedMembers();
+  }
+
+  private void invalidatePermittedMembers() {
+    Cache<PrincipalCollection, PermittedMembers> cache = permittedMembers;
+    if (cache != null) {
+      permissionGeneration.incrementAndGet();
+      cache.invalidateAll();
+    }
+  }
+
+  private void maybeInvalidateMembers(final Repository member) {
+    Config current = config;
+    if (current != null && current.memberNames.contains(member.getName())) {
+      log.debug("Member {} of group {} changed", member.getName(), getRepository().getName());
+      invalidateMembers();
+    }
+  }
+
+  private synchronized void invalidateMembers() {
+    membersGeneration.incrementAndGet();
+    GRAPH_GENERATION.incrementAndGet();
+    membersSnapshot = null;
+    flattened = null;
+  }
+
   @Override
   @Guarded(by = STARTED)
   public boolean member(final String repositoryName) {
@@ -184,16 +367,69 @@ public class GroupFacetImpl
     return config.memberNames.contains(repository.getName());
   }
 
+  /**
+   * SSO patch: returns members resolved once per configuration, the list is rebuilt after configuration update and
+   * when a member repository is created or deleted. Returned list is immutable.
+   */
   @Override
   @Guarded(by = STARTED)
   public List<Repository> members() {
+    List<Repository> members = resolvedMembers();
+    // SSO patch
+    if (groupPermissionEnabled) {
+      PermittedMembers permitted = permittedMembers(members);
+      return permitted != null ? permitted.members : repositoryPermissionChecker.userCanBrowseRepositories(members);
+    }
+    return members;
+  }
+
+  /**
+   * SSO patch: members permitted to the current subject, cached by principals of all realms until the snapshot of
+   * members, members of nested groups, roles, privileges or users are changed.
+   *
+   * @return permitted members or {@code null} if the cache is disabled or the subject is not authenticated
+   */
+  @Nullable
+  private PermittedMembers permittedMembers(final List<Repository> members) {
+    Cache<PrincipalCollection, PermittedMembers> cache = permittedMembers;
+    PrincipalCollection principals = SecurityUtils.getSubject().getPrincipals();
+    if (cache == null || principals == null || principals.isEmpty() || groupPermissionTtl <= 0) {
+      return null;
+    }
+
+    PermittedMembers permitted = cache.getIfPresent(principals);
+    long graphGeneration = GRAPH_GENERATION.get();
+    if (permitted == null || permitted.source != members || permitted.graphGeneration != graphGeneration) {
+      long generation = permissionGeneration.get();
+      permitted = new PermittedMembers(members, graphGeneration,
+          Collections.unmodifiableList(repositoryPermissionChecker.userCanBrowseRepositories(members)));
+      if (generation == permissionGeneration.get()) {
+        cache.put(principals, permitted);
+      }
+    }
+    return permitted;
+  }
+
+  /**
+   * SSO patch: members not filtered by privileges.
+   */
+  private List<Repository> resolvedMembers() {
+    List<Repository> members = membersSnapshot;
+    return members != null ? members : resolveMembers();
+  }
+
+  private List<Repository> resolveMembers() {
     final Repository repository = getRepository();
+    final long generation = membersGeneration.get();
+    final Config current = config;
 
-    List<Repository> members = new ArrayList<>(config.memberNames.size());
-    for (String name : config.memberNames) {
+    boolean complete = true;
+    List<Repository> members = new ArrayList<>(current.memberNames.size());
+    for (String name : current.memberNames) {
       Repository member = repositoryManager.get(name);
       if (member == null) {
         log.warn("Ignoring missing member repository: {}", name);
+        complete = false;
       }
       else if (!repository.getFormat().equals(member.getFormat())) {
         log.warn("Group {} includes an incompatible-format member: {} with format {}",
@@ -203,42 +439,164 @@ public class GroupFacetImpl
         members.add(member);
       }
     }
-    // SSO patch
-    if (groupPermissionEnabled) {
-      return repositoryPermissionChecker.userCanBrowseRepositories(members);
+    members = Collections.unmodifiableList(members);
+
+    // Missing member is resolved again on next call, result raced with invalidation is not kept
+    if (complete) {
+      synchronized (this) {
+        if (generation == membersGeneration.get()) {
+          membersSnapshot = members;
+        }
+      }
     }
     return members;
   }
 
   @Override
   public List<Repository> leafMembers() {
+    // SSO patch
+    if (!groupPermissionEnabled) {
+      return flattened(new HashSet<>()).leafMembers;
+    }
+    return permittedFlattened().leafMembers;
+  }
+
+  @Override
+  public List<Repository> allMembers() {
+    // SSO patch
+    if (!groupPermissionEnabled) {
+      return flattened(new HashSet<>()).allMembers;
+    }
+    return permittedFlattened().allMembers;
+  }
+
+  /**
+   * SSO patch: flattened members permitted to the current subject. Privileges of all nested members are checked at
+   * once and nested groups are walked in the shared flattened members, the result is cached per subject.
+   */
+  private Flattened permittedFlattened() {
+    PermittedMembers permitted = permittedMembers(resolvedMembers());
+    Flattened nested = permitted != null ? permitted.nested : null;
+    if (nested != null) {
+      return nested;
+    }
+
+    Flattened graph = flattened(new HashSet<>());
+    Set<Repository> allowed = new HashSet<>(
+        repositoryPermissionChecker.userCanBrowseRepositories(new ArrayList<>(new LinkedHashSet<>(graph.allMembers))));
     Set<Repository> leafMembers = new LinkedHashSet<>();
+    List<Repository> allMembers = new ArrayList<>();
+    allMembers.add(getRepository());
+    permittedFlattened(graph, allowed, getRepository(), new HashSet<>(), leafMembers, allMembers);
+
+    nested = new Flattened(graph.generation, graph.complete, new ArrayList<>(leafMembers), allMembers,
+        Collections.emptyMap());
+    if (permitted != null && graph.complete) {
+      permitted.nested = nested;
+    }
+    return nested;
+  }
 
-    for (Repository repository : members()) {
-      if (groupType.equals(repository.getType())) {
-        leafMembers.addAll(repository.facet(GroupFacet.class).leafMembers());
+  private void permittedFlattened(final Flattened graph,
+                                  final Set<Repository> allowed,
+                                  final Repository group,
+                                  final Set<String> visiting,
+                                  final Set<Repository> leafMembers,
+                                  final List<Repository> allMembers)
+  {
+    List<Repository> members = graph.groupMembers.get(group.getName());
+    if (members == null || !visiting.add(group.getName())) {
+      return;
+    }
+    for (Repository member : members) {
+      if (!allowed.contains(member)) {
+        continue;
+      }
+      if (!groupType.equals(member.getType())) {
+        leafMembers.add(member);
+        allMembers.add(member);
+      }
+      else if (graph.groupMembers.containsKey(member.getName())) {
+        allMembers.add(member);
+        permittedFlattened(graph, allowed, member, visiting, leafMembers, allMembers);
       }
       else {
-        leafMembers.add(repository);
+        GroupFacet memberFacet = member.facet(GroupFacet.class);
+        leafMembers.addAll(memberFacet.leafMembers());
+        allMembers.addAll(memberFacet.allMembers());
       }
     }
-
-    return new ArrayList<>(leafMembers);
+    visiting.remove(group.getName());
   }
 
-  @Override
-  public List<Repository> allMembers() {
-    return allMembers(new ArrayList<>(), getRepository());
-  }
+  /**
+   * SSO patch: leaf and all members of nested groups not filtered by privileges, computed once and reused until
+   * members of any group are changed. Members permitted to the subject are filtered from it. Group already being
+   * flattened is skipped, so a cycle of groups does not recurse infinitely.
+   *
+   * @param visiting names of groups being flattened by the caller
+   * @return flattened members or {@code null} if this group is already being flattened
+   */
+  private Flattened flattened(final Set<String> visiting) {
+    final long generation = GRAPH_GENERATION.get();
+    Flattened current = flattened;
+    if (current != null && current.generation == generation) {
+      return current;
+    }
 
-  private static List<Repository> allMembers(final List<Repository> members, final Repository root) {
-    members.add(root);
-    List<Repository> groupMembers = root.optionalFacet(GroupFacet.class).map(GroupFacet::members)
-        .orElseGet(Collections::emptyList);
-    for (Repository child : groupMembers) {
-        allMembers(members, child);
+    final Repository root = getRepository();
+    if (!visiting.add(root.getName())) {
+      log.warn("Group {} contains itself, nested members are ignored", root.getName());
+      return null;
+    }
+    try {
+      List<Repository> members = resolvedMembers();
+      // Snapshot of members is not kept while any member is missing
+      boolean complete = members == membersSnapshot;
+
+      Set<Repository> leafMembers = new LinkedHashSet<>();
+      List<Repository> allMembers = new ArrayList<>();
+      Map<String, List<Repository>> groupMembers = new HashMap<>();
+      allMembers.add(root);
+      groupMembers.put(root.getName(), members);
+      for (Repository member : members) {
+        if (!groupType.equals(member.getType())) {
+          leafMembers.add(member);
+          allMembers.add(member);
+          continue;
+        }
+        GroupFacet memberFacet = member.facet(GroupFacet.class);
+        if (memberFacet instanceof GroupFacetImpl) {
+          Flattened nested = ((GroupFacetImpl) memberFacet).flattened(visiting);
+          if (nested == null) {
+            complete = false;
+            continue;
+          }
+          leafMembers.addAll(nested.leafMembers);
+          allMembers.addAll(nested.allMembers);
+          groupMembers.putAll(nested.groupMembers);
+          complete &= nested.complete;
+        }
+        else {
+          leafMembers.addAll(memberFacet.leafMembers());
+          allMembers.addAll(memberFacet.allMembers());
+          complete = false;
+        }
+      }
+
+      current = new Flattened(generation, complete, new ArrayList<>(leafMembers), allMembers, groupMembers);
+      if (complete) {
+        synchronized (this) {
+          if (generation == GRAPH_GENERATION.get()) {
+            flattened = current;
+          }
+        }
+      }
+      return current;
+    }
+    finally {
+      visiting.remove(root.getName());
     }
-    return members;
   }
 
   @Override